@@ -0,0 +1,268 @@
+package io.pivotal.labs.cfenv;
+
+import java.beans.ConstructorProperties;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Modifier;
+import java.lang.reflect.Parameter;
+import java.net.URI;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A plan for binding credentials to instances of a class. Working out which constructor to call, which fields or parameters to fill, under which keys to look for their values, and how to convert those values, takes a lot of reflection, so it is done once for each class, and the plan is kept in a {@link ClassValue}. Binding is then a lookup and a conversion for each property.
+ *
+ * A class may be bound in one of two ways:
+ *
+ * - if it has a no-argument constructor, by calling that, and then setting its non-static, non-final, non-transient fields, including inherited ones
+ * - otherwise, by calling its constructor, which must be annotated with {@link ConstructorProperties}, or compiled with parameter names (using `javac -parameters`); if there are several such constructors, the one with the most parameters is used
+ *
+ * Each property is looked up in the credentials under its name, and then under its name converted to snake case, so a property `maxConns` can be bound from a key "max_conns". Properties with no matching key keep their default values.
+ */
+final class BindingPlan<T> {
+
+    private static final ClassValue<BindingPlan<?>> PLANS = new ClassValue<BindingPlan<?>>() {
+        @Override
+        protected BindingPlan<?> computeValue(Class<?> type) {
+            return new BindingPlan<>(type);
+        }
+    };
+
+    private final Class<T> type;
+    private final Constructor<T> constructor;
+    private final Property[] properties;
+    private final boolean constructorBinding;
+
+    @SuppressWarnings("unchecked")
+    static <T> BindingPlan<T> of(Class<T> type) {
+        return (BindingPlan<T>) PLANS.get(type);
+    }
+
+    /**
+     * Makes the plan. Classes in modules which are not open to us cannot be bound, because we cannot get at their constructors and fields; the failure to get at them is reported as an IllegalArgumentException, like any other class which cannot be bound.
+     */
+    private BindingPlan(Class<T> type) {
+        this.type = type;
+        Constructor<T> noArgConstructor = noArgConstructor(type);
+        if (noArgConstructor != null) {
+            constructor = noArgConstructor;
+            properties = fieldProperties(type);
+            constructorBinding = false;
+        } else {
+            constructor = propertiesConstructor(type);
+            properties = parameterProperties(constructor);
+            constructorBinding = true;
+        }
+        try {
+            makeAccessible();
+        } catch (RuntimeException e) {
+            throw new IllegalArgumentException("cannot bind to " + type.getName() + ": " + e.getMessage(), e);
+        }
+    }
+
+    private void makeAccessible() {
+        constructor.setAccessible(true);
+        if (!constructorBinding) {
+            for (Property property : properties) {
+                property.field.setAccessible(true);
+            }
+        }
+    }
+
+    /**
+     * Binds some credentials to a new instance.
+     *
+     * @param path the path to the credentials, for use in messages, either empty, or ending with a dot
+     */
+    T bind(Map<?, ?> credentials, String path) {
+        try {
+            if (constructorBinding) {
+                Object[] arguments = new Object[properties.length];
+                for (int i = 0; i < properties.length; i++) {
+                    Object value = properties[i].read(credentials, path);
+                    arguments[i] = value != null ? value : Converter.defaultValue(properties[i].type);
+                }
+                return constructor.newInstance(arguments);
+            } else {
+                T instance = constructor.newInstance();
+                for (Property property : properties) {
+                    Object value = property.read(credentials, path);
+                    if (value != null || !property.type.isPrimitive() && property.isPresent(credentials)) property.field.set(instance, value);
+                }
+                return instance;
+            }
+        } catch (InstantiationException | IllegalAccessException e) {
+            throw new IllegalArgumentException("cannot bind to " + type.getName(), e);
+        } catch (InvocationTargetException e) {
+            throw new IllegalArgumentException("cannot bind to " + type.getName() + ": constructor failed", e.getCause());
+        }
+    }
+
+    private static <T> Constructor<T> noArgConstructor(Class<T> type) {
+        if (type.isInterface() || Modifier.isAbstract(type.getModifiers()) || type.isPrimitive() || type.isArray()) {
+            throw new IllegalArgumentException("cannot bind to " + type.getName() + ": it is not a concrete class");
+        }
+        try {
+            return type.getDeclaredConstructor();
+        } catch (NoSuchMethodException e) {
+            return null;
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T> Constructor<T> propertiesConstructor(Class<T> type) {
+        Constructor<T> best = null;
+        for (Constructor<?> candidate : type.getDeclaredConstructors()) {
+            if (parameterNames(candidate) != null && (best == null || candidate.getParameterCount() > best.getParameterCount())) {
+                best = (Constructor<T>) candidate;
+            }
+        }
+        if (best == null) {
+            throw new IllegalArgumentException("cannot bind to " + type.getName() + ": it needs a no-argument constructor, or a constructor with @ConstructorProperties or compiled with parameter names");
+        }
+        return best;
+    }
+
+    private static String[] parameterNames(Constructor<?> constructor) {
+        ConstructorProperties annotation = constructor.getAnnotation(ConstructorProperties.class);
+        if (annotation != null && annotation.value().length == constructor.getParameterCount()) return annotation.value();
+        Parameter[] parameters = constructor.getParameters();
+        String[] names = new String[parameters.length];
+        for (int i = 0; i < parameters.length; i++) {
+            if (!parameters[i].isNamePresent()) return null;
+            names[i] = parameters[i].getName();
+        }
+        return names;
+    }
+
+    private static Property[] fieldProperties(Class<?> type) {
+        List<Property> properties = new ArrayList<>();
+        for (Class<?> declaringClass = type; declaringClass != Object.class; declaringClass = declaringClass.getSuperclass()) {
+            for (Field field : declaringClass.getDeclaredFields()) {
+                int modifiers = field.getModifiers();
+                if (Modifier.isStatic(modifiers) || Modifier.isFinal(modifiers) || Modifier.isTransient(modifiers) || field.isSynthetic()) continue;
+                properties.add(new Property(field.getName(), field.getType(), Converter.of(field.getType()), field));
+            }
+        }
+        return properties.toArray(new Property[properties.size()]);
+    }
+
+    private static Property[] parameterProperties(Constructor<?> constructor) {
+        String[] names = parameterNames(constructor);
+        Class<?>[] types = constructor.getParameterTypes();
+        Property[] properties = new Property[types.length];
+        for (int i = 0; i < types.length; i++) {
+            properties[i] = new Property(names[i], types[i], Converter.of(types[i]), null);
+        }
+        return properties;
+    }
+
+    private static String snakeCase(String name) {
+        StringBuilder snakeCase = new StringBuilder(name.length() + 4);
+        for (int i = 0; i < name.length(); i++) {
+            char c = name.charAt(i);
+            if (Character.isUpperCase(c)) {
+                if (i > 0) snakeCase.append('_');
+                snakeCase.append(Character.toLowerCase(c));
+            } else {
+                snakeCase.append(c);
+            }
+        }
+        return snakeCase.toString();
+    }
+
+    private static final class Property {
+        private final String[] keys;
+        private final Class<?> type;
+        private final Converter converter;
+        private final Field field;
+
+        private Property(String name, Class<?> type, Converter converter, Field field) {
+            String snakeCase = snakeCase(name);
+            this.keys = snakeCase.equals(name) ? new String[]{name} : new String[]{name, snakeCase};
+            this.type = type;
+            this.converter = converter;
+            this.field = field;
+        }
+
+        /**
+         * Reads and converts the value of this property.
+         *
+         * @return the value, or null if it is missing or null
+         */
+        private Object read(Map<?, ?> credentials, String path) {
+            for (String key : keys) {
+                Object value = credentials.get(key);
+                if (value != null) return converter.convert(value, path + key);
+            }
+            return null;
+        }
+
+        private boolean isPresent(Map<?, ?> credentials) {
+            for (String key : keys) {
+                if (credentials.containsKey(key)) return true;
+            }
+            return false;
+        }
+    }
+
+    /**
+     * A conversion from a value in the credentials to the type of a property, chosen once, when the plan is made.
+     */
+    @FunctionalInterface
+    private interface Converter {
+        Object convert(Object value, String path);
+
+        static Converter of(Class<?> type) {
+            if (type == String.class) return (value, path) -> value instanceof Map || value instanceof List ? wrongType(value, path, "a string") : value.toString();
+            if (type == int.class || type == Integer.class) return (value, path) -> {
+                long scalar = integer(value, path, "an int");
+                if ((int) scalar != scalar) wrongType(value, path, "an int");
+                return (int) scalar;
+            };
+            if (type == long.class || type == Long.class) return (value, path) -> integer(value, path, "a long");
+            if (type == double.class || type == Double.class) return (value, path) -> {
+                if (value instanceof Number) return ((Number) value).doubleValue();
+                if (CompactMap.kindOf(value) == CompactMap.LONG) return (double) CompactMap.scalarOf(value, CompactMap.LONG);
+                return wrongType(value, path, "a double");
+            };
+            if (type == boolean.class || type == Boolean.class) return (value, path) -> value instanceof Boolean ? value : wrongType(value, path, "a boolean");
+            if (type == URI.class) return (value, path) -> value instanceof String ? URI.create((String) value) : wrongType(value, path, "a URI");
+            if (type.isAssignableFrom(Map.class) || type.isAssignableFrom(List.class)) return (value, path) -> type.isInstance(value) ? value : wrongType(value, path, "a " + type.getSimpleName());
+            if (type.isEnum()) return (value, path) -> {
+                String name = value.toString().replace('-', '_');
+                for (Object constant : type.getEnumConstants()) {
+                    if (((Enum<?>) constant).name().equalsIgnoreCase(name)) return constant;
+                }
+                return wrongType(value, path, "one of " + Arrays.toString(type.getEnumConstants()));
+            };
+            return (value, path) -> value instanceof Map ? BindingPlan.of(type).bind((Map<?, ?>) value, path + ".") : wrongType(value, path, "an object");
+        }
+
+        static long integer(Object value, String path, String description) {
+            byte kind = CompactMap.kindOf(value);
+            if (kind != CompactMap.LONG) wrongType(value, path, description);
+            return CompactMap.scalarOf(value, kind);
+        }
+
+        static Object wrongType(Object value, String path, String description) {
+            throw new ClassCastException("not " + description + ": " + path);
+        }
+
+        static Object defaultValue(Class<?> type) {
+            if (!type.isPrimitive()) return null;
+            if (type == boolean.class) return false;
+            if (type == char.class) return '\0';
+            if (type == double.class) return 0.0;
+            if (type == float.class) return 0.0f;
+            if (type == long.class) return 0L;
+            if (type == int.class) return 0;
+            if (type == short.class) return (short) 0;
+            return (byte) 0;
+        }
+    }
+
+}
@@ -0,0 +1,359 @@
+package io.pivotal.labs.cfenv;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.function.Consumer;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * Parses many `VCAP_SERVICES` documents at once, from a stream of https://github.com/ndjson/ndjson-spec[newline-delimited JSON] with one document on each line, such as an export of the environments of all the applications on a platform. This is for auditing and other tooling; an application only ever needs its own environment.
+ *
+ * The documents are read by one thread, and parsed by a pool of others. At most a fixed number of documents are in flight - handed to the pool to be parsed, but not yet taken by the consumer - at any time; when that many are, reading waits until the consumer catches up, so however large the input, and however slow the consumer, memory use stays bounded. Results come out in the order of the input, one for each non-blank line.
+ *
+ * All the documents are parsed with one {@link StringTable}, and services which are identical in more than one document, as when a service is bound to several applications, are kept once, and shared by all the environments they appear in.
+ *
+ * A document which is malformed gives a result holding the problem, rather than an environment; it does not stop the other documents being parsed. Instances are immutable; each of the setting methods returns a modified copy, so they can be chained:
+ *
+ * ----
+ * try (Stream<BulkIngest.Result> results = BulkIngest.defaults().parallelism(8).stream(Paths.get("environments.ndjson"))) {
+ *     results.filter(BulkIngest.Result::isSuccess).forEach(result -> audit(result.getEnvironment()));
+ * }
+ * ----
+ */
+public class BulkIngest implements Cloneable {
+
+    private static final BulkIngest DEFAULTS = new BulkIngest();
+
+    private int parallelism = Runtime.getRuntime().availableProcessors();
+    private int maxInFlight = 1024;
+    private int serviceTableCapacity = 4096;
+    private ParsingOptions options = ParsingOptions.defaults();
+
+    private BulkIngest() {}
+
+    /**
+     * Gets the default settings, which parse with a thread for each processor, and at most 1024 documents in flight.
+     *
+     * @return the default settings
+     */
+    public static BulkIngest defaults() {
+        return DEFAULTS;
+    }
+
+    /**
+     * Sets the number of threads which parse documents.
+     *
+     * @param parallelism the number of threads
+     * @return a copy of these settings with the given number of threads
+     */
+    public BulkIngest parallelism(int parallelism) {
+        if (parallelism < 1) throw new IllegalArgumentException("parallelism must be positive: " + parallelism);
+        BulkIngest copy = copy();
+        copy.parallelism = parallelism;
+        return copy;
+    }
+
+    /**
+     * Sets the greatest number of documents which may be in flight at once.
+     *
+     * @param maxInFlight the number of documents
+     * @return a copy of these settings with the given number of documents
+     */
+    public BulkIngest maxInFlight(int maxInFlight) {
+        if (maxInFlight < 1) throw new IllegalArgumentException("maximum in flight must be positive: " + maxInFlight);
+        BulkIngest copy = copy();
+        copy.maxInFlight = maxInFlight;
+        return copy;
+    }
+
+    /**
+     * Sets the number of slots in the table used to share identical services between environments, as for {@link StringTable#StringTable(int)}.
+     *
+     * @param serviceTableCapacity the number of slots
+     * @return a copy of these settings with the given number of slots
+     */
+    public BulkIngest serviceTableCapacity(int serviceTableCapacity) {
+        if (serviceTableCapacity < 1) throw new IllegalArgumentException("capacity must be positive: " + serviceTableCapacity);
+        BulkIngest copy = copy();
+        copy.serviceTableCapacity = serviceTableCapacity;
+        return copy;
+    }
+
+    /**
+     * Sets the options with which each document is parsed. If the options have no {@linkplain ParsingOptions#stringTable(StringTable) string table}, one is made for each ingest, and shared by all its documents. Services are not shared between environments if credentials are {@linkplain ParsingOptions#lazyCredentials() parsed lazily}, as that would mean parsing them all.
+     *
+     * @param options the options
+     * @return a copy of these settings with the given options
+     */
+    public BulkIngest options(ParsingOptions options) {
+        BulkIngest copy = copy();
+        copy.options = options;
+        return copy;
+    }
+
+    /**
+     * Parses the documents in a stream, passing each result to a callback, on the calling thread, in the order of the input. This returns when the whole stream has been read, but does not close it.
+     *
+     * @param ndjson   the documents, as UTF-8
+     * @param callback the callback
+     * @throws UncheckedIOException if the stream could not be read
+     */
+    public void ingest(InputStream ndjson, Consumer<Result> callback) {
+        try (Stream<Result> results = stream(ndjson)) {
+            results.forEachOrdered(callback);
+        }
+    }
+
+    /**
+     * Parses the documents in a file, passing each result to a callback, as with {@link #ingest(InputStream, Consumer)}. This returns when the whole file has been read, and closes it.
+     *
+     * @param ndjson   the file
+     * @param callback the callback
+     * @throws IOException          if the file could not be opened
+     * @throws UncheckedIOException if the file could not be read
+     */
+    public void ingest(Path ndjson, Consumer<Result> callback) throws IOException {
+        try (Stream<Result> results = stream(ndjson)) {
+            results.forEachOrdered(callback);
+        }
+    }
+
+    /**
+     * Parses the documents in a stream, giving a lazy stream of the results, in the order of the input. The documents are read and parsed in the background as the results are taken; the resulting stream should be closed when done with, which stops the reading, but does not close the input stream. If the input cannot be read, taking the result after the last one which could be read throws an {@link UncheckedIOException}.
+     *
+     * @param ndjson the documents, as UTF-8
+     * @return the results
+     */
+    public Stream<Result> stream(InputStream ndjson) {
+        return start(new BufferedReader(new InputStreamReader(ndjson, StandardCharsets.UTF_8)), false);
+    }
+
+    /**
+     * Parses the documents in a file, as with {@link #stream(InputStream)}. Closing the stream of results closes the file.
+     *
+     * @param ndjson the file
+     * @return the results
+     * @throws IOException if the file could not be opened
+     */
+    public Stream<Result> stream(Path ndjson) throws IOException {
+        return start(new BufferedReader(new InputStreamReader(Files.newInputStream(ndjson), StandardCharsets.UTF_8)), true);
+    }
+
+    private Stream<Result> start(BufferedReader reader, boolean closeReader) {
+        Ingest ingest = new Ingest(reader);
+        Stream<Result> results = StreamSupport.stream(Spliterators.spliteratorUnknownSize(ingest, Spliterator.ORDERED | Spliterator.NONNULL), false);
+        return results.onClose(() -> {
+            ingest.stop();
+            if (closeReader) {
+                try {
+                    reader.close();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+        });
+    }
+
+    /**
+     * One run of the pipeline. A reader thread reads lines, and submits each to the pool of parsing threads, putting the future result on a queue; the consumer takes futures from the queue in order, and waits for each to complete. The reader takes a permit before submitting each line, and the consumer gives it back when it takes the result, which is what bounds the number of documents in flight, and makes the reader wait for the consumer. The end of the input is marked by a future whose result is null.
+     *
+     * Reading a line cannot be interrupted, so the reader may still be reading when the consumer stops the run; it checks whether it has been stopped before submitting anything, and gives up quietly if the pool has already been shut down.
+     */
+    private class Ingest implements Iterator<Result> {
+        private final BufferedReader reader;
+        private final ParsingOptions options;
+        private final ServiceTable services;
+        private final ExecutorService parsers;
+        private final BlockingQueue<Future<Result>> inFlight;
+        private final Semaphore permits;
+        private final Thread readerThread;
+        private volatile boolean stopped;
+        private Result next;
+        private boolean finished;
+
+        private Ingest(BufferedReader reader) {
+            this.reader = reader;
+            ParsingOptions options = BulkIngest.this.options;
+            this.options = options.getStringTable() == null ? options.stringTable(new StringTable(65536)) : options;
+            this.services = options.isLazyCredentials() ? null : new ServiceTable(serviceTableCapacity);
+            this.parsers = Executors.newFixedThreadPool(parallelism, runnable -> {
+                Thread thread = new Thread(runnable, "cf-env-bulk-ingest");
+                thread.setDaemon(true);
+                return thread;
+            });
+            this.inFlight = new LinkedBlockingQueue<>();
+            this.permits = new Semaphore(maxInFlight);
+            this.readerThread = new Thread(this::readLines, "cf-env-bulk-ingest-reader");
+            this.readerThread.setDaemon(true);
+            this.readerThread.start();
+        }
+
+        private void readLines() {
+            try {
+                long lineNumber = 0;
+                String line;
+                try {
+                    while ((line = reader.readLine()) != null) {
+                        ++lineNumber;
+                        if (line.trim().isEmpty()) continue;
+                        String json = line;
+                        long number = lineNumber;
+                        permits.acquire();
+                        if (stopped) return;
+                        inFlight.put(parsers.submit(() -> parse(json, number)));
+                    }
+                } catch (IOException e) {
+                    CompletableFuture<Result> failure = new CompletableFuture<>();
+                    failure.completeExceptionally(new UncheckedIOException("error reading line " + (lineNumber + 1), e));
+                    inFlight.put(failure);
+                    return;
+                }
+                inFlight.put(CompletableFuture.completedFuture(null));
+            } catch (InterruptedException | RejectedExecutionException e) {
+                // stopped by the consumer, who will take no more results
+            }
+        }
+
+        private Result parse(String json, long lineNumber) {
+            try {
+                List<CloudFoundryService> parsed = ServiceParser.parse(JsonSource.of(json), options);
+                List<CloudFoundryService> shared = new ArrayList<>(parsed.size());
+                for (CloudFoundryService service : parsed) {
+                    shared.add(services != null ? services.intern(service) : service);
+                }
+                return new Result(lineNumber, CloudFoundryEnvironment.of(shared, null), null);
+            } catch (IOException e) {
+                return new Result(lineNumber, null, new CloudFoundryEnvironmentException("error parsing JSON: " + e.getMessage(), e));
+            } catch (RuntimeException e) {
+                return new Result(lineNumber, null, e);
+            }
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (next != null) return true;
+            if (finished) return false;
+            Result result;
+            try {
+                result = inFlight.take().get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException("interrupted while waiting for a document to be parsed", e);
+            } catch (ExecutionException e) {
+                finished = true;
+                stop();
+                if (e.getCause() instanceof UncheckedIOException) throw (UncheckedIOException) e.getCause();
+                throw new IllegalStateException(e.getCause());
+            }
+            if (result == null) {
+                finished = true;
+                stop();
+                return false;
+            }
+            permits.release();
+            next = result;
+            return true;
+        }
+
+        @Override
+        public Result next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            Result result = next;
+            next = null;
+            return result;
+        }
+
+        private void stop() {
+            stopped = true;
+            readerThread.interrupt();
+            parsers.shutdownNow();
+        }
+    }
+
+    /**
+     * The result of parsing one document: either an environment, or the problem which stopped it being parsed.
+     */
+    public static final class Result {
+        private final long lineNumber;
+        private final CloudFoundryEnvironment environment;
+        private final Exception failure;
+
+        private Result(long lineNumber, CloudFoundryEnvironment environment, Exception failure) {
+            this.lineNumber = lineNumber;
+            this.environment = environment;
+            this.failure = failure;
+        }
+
+        /**
+         * Gets the number of the line holding the document, counting from one.
+         *
+         * @return the line number
+         */
+        public long getLineNumber() {
+            return lineNumber;
+        }
+
+        /**
+         * Tells whether the document was parsed.
+         *
+         * @return true if there is an environment, false if there is a failure
+         */
+        public boolean isSuccess() {
+            return failure == null;
+        }
+
+        /**
+         * Gets the environment.
+         *
+         * @return the environment, or null if the document could not be parsed
+         */
+        public CloudFoundryEnvironment getEnvironment() {
+            return environment;
+        }
+
+        /**
+         * Gets the problem which stopped the document being parsed. This is usually a {@link CloudFoundryEnvironmentException}; its message gives the position of the problem in the line, but never includes the document itself.
+         *
+         * @return the problem, or null if the document was parsed
+         */
+        public Exception getFailure() {
+            return failure;
+        }
+
+        @Override
+        public String toString() {
+            return "line " + lineNumber + ": " + (failure == null ? environment.getServiceNames() : failure.getMessage());
+        }
+    }
+
+    private BulkIngest copy() {
+        try {
+            return (BulkIngest) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+}
@@ -0,0 +1,331 @@
+package io.pivotal.labs.cfenv;
+
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.function.Function;
+
+/**
+ * Information about the running application and instance, described by the https://docs.cloudfoundry.org/devguide/deploy-apps/environment-variable.html[environment variables] other than `VCAP_SERVICES`: `VCAP_APPLICATION`, `PORT`, `CF_INSTANCE_INDEX`, `CF_INSTANCE_GUID`, `CF_INSTANCE_ADDR`, and `MEMORY_LIMIT`.
+ *
+ * Each variable is read and parsed the first time it is asked for, and never again; the parsed value is kept, and later calls just return it, so they are cheap enough for hot paths, such as sizing a buffer from the memory limit on every request. A variable which is missing or malformed is likewise only looked at once, and an exception describing the same problem is thrown on every call; an attribute of `VCAP_APPLICATION` of the wrong type counts as malformed.
+ *
+ * Instances are safe for use by multiple threads.
+ */
+public class CloudFoundryApplication {
+
+    private static final String VCAP_APPLICATION = "VCAP_APPLICATION";
+    private static final String PORT = "PORT";
+    private static final String CF_INSTANCE_INDEX = "CF_INSTANCE_INDEX";
+    private static final String CF_INSTANCE_GUID = "CF_INSTANCE_GUID";
+    private static final String CF_INSTANCE_ADDR = "CF_INSTANCE_ADDR";
+    private static final String MEMORY_LIMIT = "MEMORY_LIMIT";
+
+    /**
+     * The names of all the variables an application reads, so that an environment can tell whether another describes the same application.
+     */
+    static final String[] VARIABLE_NAMES = {VCAP_APPLICATION, PORT, CF_INSTANCE_INDEX, CF_INSTANCE_GUID, CF_INSTANCE_ADDR, MEMORY_LIMIT};
+
+    private final Variable<Map<String, Object>> vcapApplication;
+    private final Variable<Integer> port;
+    private final Variable<Integer> instanceIndex;
+    private final Variable<String> instanceGuid;
+    private final Variable<String> instanceAddress;
+    private final Variable<Long> memoryLimit;
+
+    /**
+     * Creates a view of the application described by an environment. Nothing is read from the environment until it is asked for.
+     *
+     * @param environment the underlying environment from which to obtain the environment variables
+     */
+    public CloudFoundryApplication(Environment environment) {
+        this.vcapApplication = new Variable<>(environment, VCAP_APPLICATION, CloudFoundryApplication::parseObject);
+        this.port = new Variable<>(environment, PORT, CloudFoundryApplication::parsePort);
+        this.instanceIndex = new Variable<>(environment, CF_INSTANCE_INDEX, CloudFoundryApplication::parseIndex);
+        this.instanceGuid = new Variable<>(environment, CF_INSTANCE_GUID, Function.identity());
+        this.instanceAddress = new Variable<>(environment, CF_INSTANCE_ADDR, Function.identity());
+        this.memoryLimit = new Variable<>(environment, MEMORY_LIMIT, CloudFoundryApplication::parseMemoryLimit);
+    }
+
+    /**
+     * Gets the whole of `VCAP_APPLICATION`, parsed as credentials are: an immutable map, which may contain strings, numbers, booleans, nulls, and lists or maps of these.
+     *
+     * @return the application's attributes
+     * @throws NoSuchElementException if the variable is not defined
+     * @throws IllegalStateException  if the variable is not a JSON object
+     */
+    public Map<String, Object> getAttributes() {
+        return vcapApplication.get();
+    }
+
+    /**
+     * Gets the application's name, from the "application_name" attribute.
+     *
+     * @return the name
+     * @throws NoSuchElementException if there is no such attribute, or `VCAP_APPLICATION` is not defined
+     * @throws IllegalStateException  if `VCAP_APPLICATION` is malformed
+     */
+    public String getName() {
+        return getStringAttribute("application_name");
+    }
+
+    /**
+     * Gets the application's GUID, from the "application_id" attribute.
+     *
+     * @return the GUID
+     * @throws NoSuchElementException if there is no such attribute, or `VCAP_APPLICATION` is not defined
+     * @throws IllegalStateException  if `VCAP_APPLICATION` is malformed
+     */
+    public String getId() {
+        return getStringAttribute("application_id");
+    }
+
+    /**
+     * Gets the routes to the application, from the "application_uris" attribute. Despite the name, these are hostnames with optional paths, such as "myapp.example.org/api", rather than URIs.
+     *
+     * @return the routes, which are empty if the attribute is missing
+     * @throws NoSuchElementException if `VCAP_APPLICATION` is not defined
+     * @throws IllegalStateException  if `VCAP_APPLICATION` is malformed
+     */
+    @SuppressWarnings("unchecked")
+    public List<String> getUris() {
+        Object uris = getAttributes().get("application_uris");
+        if (uris == null) return Collections.emptyList();
+        if (!(uris instanceof List)) throw malformedAttribute("application_uris", "a list");
+        return (List<String>) uris;
+    }
+
+    /**
+     * Gets the name of the space the application is in, from the "space_name" attribute.
+     *
+     * @return the space name
+     * @throws NoSuchElementException if there is no such attribute, or `VCAP_APPLICATION` is not defined
+     * @throws IllegalStateException  if `VCAP_APPLICATION` is malformed
+     */
+    public String getSpaceName() {
+        return getStringAttribute("space_name");
+    }
+
+    /**
+     * Gets the GUID of the space the application is in, from the "space_id" attribute.
+     *
+     * @return the space GUID
+     * @throws NoSuchElementException if there is no such attribute, or `VCAP_APPLICATION` is not defined
+     * @throws IllegalStateException  if `VCAP_APPLICATION` is malformed
+     */
+    public String getSpaceId() {
+        return getStringAttribute("space_id");
+    }
+
+    /**
+     * Gets the name of the organization the application is in, from the "organization_name" attribute.
+     *
+     * @return the organization name
+     * @throws NoSuchElementException if there is no such attribute, or `VCAP_APPLICATION` is not defined
+     * @throws IllegalStateException  if `VCAP_APPLICATION` is malformed
+     */
+    public String getOrganizationName() {
+        return getStringAttribute("organization_name");
+    }
+
+    /**
+     * Gets the GUID of the organization the application is in, from the "organization_id" attribute.
+     *
+     * @return the organization GUID
+     * @throws NoSuchElementException if there is no such attribute, or `VCAP_APPLICATION` is not defined
+     * @throws IllegalStateException  if `VCAP_APPLICATION` is malformed
+     */
+    public String getOrganizationId() {
+        return getStringAttribute("organization_id");
+    }
+
+    private String getStringAttribute(String name) {
+        Object value = getAttributes().get(name);
+        if (value == null) throw new NoSuchElementException("no such attribute in " + VCAP_APPLICATION + ": " + name);
+        if (!(value instanceof String)) throw malformedAttribute(name, "a string");
+        return (String) value;
+    }
+
+    private static IllegalStateException malformedAttribute(String name, String expected) {
+        return new IllegalStateException("malformed environment variable " + VCAP_APPLICATION + ": " + name + " is not " + expected);
+    }
+
+    /**
+     * Gets the port on which the application should listen, from `PORT`.
+     *
+     * @return the port
+     * @throws NoSuchElementException if the variable is not defined
+     * @throws IllegalStateException  if the variable is not a port number
+     */
+    public int getPort() {
+        return port.get();
+    }
+
+    /**
+     * Gets the index of this instance among the instances of the application, from `CF_INSTANCE_INDEX`. Indexes count from zero.
+     *
+     * @return the index
+     * @throws NoSuchElementException if the variable is not defined
+     * @throws IllegalStateException  if the variable is not a non-negative integer
+     */
+    public int getInstanceIndex() {
+        return instanceIndex.get();
+    }
+
+    /**
+     * Gets the GUID of this instance, from `CF_INSTANCE_GUID`.
+     *
+     * @return the GUID
+     * @throws NoSuchElementException if the variable is not defined
+     */
+    public String getInstanceGuid() {
+        return instanceGuid.get();
+    }
+
+    /**
+     * Gets the external address of this instance, from `CF_INSTANCE_ADDR`, as a host and port, such as "10.0.16.5:61035".
+     *
+     * @return the address
+     * @throws NoSuchElementException if the variable is not defined
+     */
+    public String getInstanceAddress() {
+        return instanceAddress.get();
+    }
+
+    /**
+     * Gets the most memory this instance may use, from `MEMORY_LIMIT`, which gives it with a unit, such as "512m" or "2G". The units K, M, G, and T, in either case, and optionally followed by B, are multiples of 1024; a number without a unit is in bytes.
+     *
+     * @return the limit, in bytes
+     * @throws NoSuchElementException if the variable is not defined
+     * @throws IllegalStateException  if the variable is not a size
+     */
+    public long getMemoryLimit() {
+        return memoryLimit.get();
+    }
+
+    /**
+     * Gets the memory limit, as with {@link #getMemoryLimit()}, or a default if `MEMORY_LIMIT` is not defined, as when running outside Cloud Foundry.
+     *
+     * @param defaultValue the default, in bytes
+     * @return the limit, in bytes, or the default
+     * @throws IllegalStateException if the variable is defined, but is not a size
+     */
+    public long getMemoryLimitOrDefault(long defaultValue) {
+        return memoryLimit.isDefined() ? memoryLimit.get() : defaultValue;
+    }
+
+    private static Map<String, Object> parseObject(String json) {
+        try {
+            return ServiceParser.parseObject(JsonSource.of(json), ParsingOptions.defaults());
+        } catch (IOException e) {
+            throw new IllegalArgumentException("error parsing JSON: " + e.getMessage(), e);
+        }
+    }
+
+    private static Integer parsePort(String value) {
+        int port = Integer.parseInt(value.trim());
+        if (port < 1 || port > 65535) throw new IllegalArgumentException("not a port number");
+        return port;
+    }
+
+    private static Integer parseIndex(String value) {
+        int index = Integer.parseInt(value.trim());
+        if (index < 0) throw new IllegalArgumentException("negative");
+        return index;
+    }
+
+    private static Long parseMemoryLimit(String value) {
+        String size = value.trim().toUpperCase(Locale.ROOT);
+        if (size.endsWith("B")) size = size.substring(0, size.length() - 1);
+        int shift = 0;
+        if (!size.isEmpty()) {
+            switch (size.charAt(size.length() - 1)) {
+                case 'K':
+                    shift = 10;
+                    break;
+                case 'M':
+                    shift = 20;
+                    break;
+                case 'G':
+                    shift = 30;
+                    break;
+                case 'T':
+                    shift = 40;
+                    break;
+            }
+        }
+        if (shift != 0) size = size.substring(0, size.length() - 1).trim();
+        long amount = Long.parseLong(size);
+        if (amount < 0 || amount > Long.MAX_VALUE >> shift) throw new IllegalArgumentException("out of range");
+        return amount << shift;
+    }
+
+    /**
+     * One environment variable, read and parsed at most once. The outcome - the parsed value, or a description of what was wrong - is kept in a volatile field, so once it is known, getting it costs a volatile read and a type check. Parsing is done under a lock, so that two threads asking at once do not both do it.
+     *
+     * A failure is kept as a description rather than as an exception, and a new exception is made from it on each call, so that each caller gets an exception with its own stack trace, which it is free to add suppressed exceptions to.
+     */
+    private static final class Variable<T> {
+        private final Environment environment;
+        private final String name;
+        private final Function<String, T> parser;
+        private volatile Object outcome;
+
+        private Variable(Environment environment, String name, Function<String, T> parser) {
+            this.environment = environment;
+            this.name = name;
+            this.parser = parser;
+        }
+
+        @SuppressWarnings("unchecked")
+        T get() {
+            Object outcome = this.outcome;
+            if (outcome == null) outcome = resolve();
+            if (outcome instanceof Failure) throw ((Failure) outcome).toException();
+            return (T) outcome;
+        }
+
+        boolean isDefined() {
+            Object outcome = this.outcome;
+            if (outcome == null) outcome = resolve();
+            return !(outcome instanceof Failure) || !((Failure) outcome).missing;
+        }
+
+        private synchronized Object resolve() {
+            Object outcome = this.outcome;
+            if (outcome != null) return outcome;
+            String value = environment.get(name);
+            if (value == null || value.isEmpty()) {
+                outcome = new Failure(true, "environment variable not defined: " + name, null);
+            } else {
+                try {
+                    outcome = parser.apply(value);
+                } catch (IllegalArgumentException e) {
+                    outcome = new Failure(false, "malformed environment variable " + name + ": " + e.getMessage(), e);
+                }
+            }
+            this.outcome = outcome;
+            return outcome;
+        }
+    }
+
+    private static final class Failure {
+        private final boolean missing;
+        private final String message;
+        private final Throwable cause;
+
+        private Failure(boolean missing, String message, Throwable cause) {
+            this.missing = missing;
+            this.message = message;
+            this.cause = cause;
+        }
+
+        private RuntimeException toException() {
+            return missing ? new NoSuchElementException(message) : new IllegalStateException(message, cause);
+        }
+    }
+
+}
@@ -1,28 +1,36 @@
 package io.pivotal.labs.cfenv;
 
-import com.fasterxml.jackson.annotation.JsonInclude;
-import com.fasterxml.jackson.databind.ObjectMapper;
-
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
-import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Optional;
 import java.util.Set;
-import java.util.function.Function;
-import java.util.stream.Collectors;
 
 /**
  * An environment in which there is a set of uniquely named services, described by a https://docs.cloudfoundry.org/devguide/deploy-apps/environment-variable.html#VCAP-SERVICES[`VCAP_SERVICES`] environment variable.
  */
 public class CloudFoundryEnvironment {
 
-    private static final String VCAP_SERVICES = "VCAP_SERVICES";
-    private static final ObjectMapper OBJECT_MAPPER =
-            new ObjectMapper()
-                    .setSerializationInclusion(JsonInclude.Include.NON_NULL);
+    static final String VCAP_SERVICES = "VCAP_SERVICES";
+
+    private static final CloudFoundryApplication NO_APPLICATION = new CloudFoundryApplication(name -> null);
+
+    private static volatile Snapshot currentSnapshot;
 
-    private final Map<String, CloudFoundryService> services;
+    private final CompactMap<CloudFoundryService> services;
+    private final ServiceIndex index;
+    private final CloudFoundryApplication application;
+    private volatile CloudFoundryProperties properties;
 
     /**
      * Creates a new environment.
@@ -31,63 +39,378 @@ public class CloudFoundryEnvironment {
      * @throws CloudFoundryEnvironmentException if any of the necessary variables are missing or malformed
      */
     public CloudFoundryEnvironment(Environment environment) throws CloudFoundryEnvironmentException {
-        String vcapServices = environment.lookup(VCAP_SERVICES);
+        this(environment, ParsingOptions.defaults());
+    }
+
+    /**
+     * Creates a new environment, parsing it as directed by some options.
+     *
+     * @param environment the underlying environment from which to obtain the environment variables
+     * @param options     options controlling how the environment variables are parsed
+     * @throws CloudFoundryEnvironmentException if any of the necessary variables are missing or malformed
+     */
+    public CloudFoundryEnvironment(Environment environment, ParsingOptions options) throws CloudFoundryEnvironmentException {
+        this(JsonSource.of(environment.lookup(VCAP_SERVICES)), options, new CloudFoundryApplication(environment));
+    }
+
+    /**
+     * Gets an environment for the current value of `VCAP_SERVICES`, shared by all callers. The environment is parsed on the first call, and then kept; later calls return the same environment for as long as the variable has the same value, which costs a comparison of the lengths and hashes of the old and new values, and usually no more. If the value changes, a new environment is parsed, and kept in place of the old one. The variables describing the {@linkplain #getApplication() application} are compared too; if only they have changed, the new environment shares the services of the old one, rather than parsing them again.
+     *
+     * This makes it cheap to get the environment wherever it is needed, such as in the handling of every request, rather than having to keep it somewhere. Environments are immutable, so sharing one is safe.
+     *
+     * @param environment the underlying environment from which to obtain the environment variables
+     * @return the environment
+     * @throws CloudFoundryEnvironmentException if any of the necessary variables are missing or malformed
+     */
+    public static CloudFoundryEnvironment current(Environment environment) throws CloudFoundryEnvironmentException {
+        return current(environment, ParsingOptions.defaults());
+    }
 
-        Map<?, ?> rootNode = parse(vcapServices);
+    /**
+     * Gets an environment for the current value of `VCAP_SERVICES`, parsed as directed by some options, shared by all callers, as with {@link #current(Environment)}. An environment is only shared with callers which pass the same options object.
+     *
+     * @param environment the underlying environment from which to obtain the environment variables
+     * @param options     options controlling how the environment variables are parsed
+     * @return the environment
+     * @throws CloudFoundryEnvironmentException if any of the necessary variables are missing or malformed
+     */
+    public static CloudFoundryEnvironment current(Environment environment, ParsingOptions options) throws CloudFoundryEnvironmentException {
+        String json = environment.lookup(VCAP_SERVICES);
+        String[] applicationVariables = applicationVariables(environment);
+        Snapshot snapshot = currentSnapshot;
+        if (snapshot != null && snapshot.matches(json, options)) {
+            if (snapshot.matches(applicationVariables)) return snapshot.environment;
+            snapshot = new Snapshot(json, applicationVariables, options, snapshot.environment.withApplication(new CloudFoundryApplication(environment)));
+        } else {
+            snapshot = new Snapshot(json, applicationVariables, options, new CloudFoundryEnvironment(JsonSource.of(json), options, new CloudFoundryApplication(environment)));
+        }
+        currentSnapshot = snapshot;
+        return snapshot.environment;
+    }
+
+    private static String[] applicationVariables(Environment environment) {
+        String[] values = new String[CloudFoundryApplication.VARIABLE_NAMES.length];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = environment.get(CloudFoundryApplication.VARIABLE_NAMES[i]);
+        }
+        return values;
+    }
+
+    /**
+     * The environment most recently returned by {@link #current(Environment, ParsingOptions)}, and the text and options it was parsed from, and the values of the variables describing the application. If two threads see a new value at the same time, both parse it, and one snapshot replaces the other; that wastes a little work, but is harmless.
+     */
+    private static final class Snapshot {
+        private final String json;
+        private final int hash;
+        private final String[] applicationVariables;
+        private final ParsingOptions options;
+        private final CloudFoundryEnvironment environment;
+
+        private Snapshot(String json, String[] applicationVariables, ParsingOptions options, CloudFoundryEnvironment environment) {
+            this.json = json;
+            this.hash = json.hashCode();
+            this.applicationVariables = applicationVariables;
+            this.options = options;
+            this.environment = environment;
+        }
+
+        /**
+         * Checks whether this snapshot was parsed from the given text with the given options. `System.getenv` returns the same string every time, so the identity check usually settles it; otherwise, strings cache their hashes, so comparing lengths and hashes is cheap, and the full comparison is only made when they match.
+         */
+        private boolean matches(String json, ParsingOptions options) {
+            if (options != this.options) return false;
+            if (json == this.json) return true;
+            return json.length() == this.json.length() && json.hashCode() == hash && json.equals(this.json);
+        }
+
+        /**
+         * Checks whether this snapshot's application was described by the given values. These are short, so they are simply compared.
+         */
+        private boolean matches(String[] applicationVariables) {
+            return Arrays.equals(applicationVariables, this.applicationVariables);
+        }
+    }
+
+    private CloudFoundryEnvironment(JsonSource json, ParsingOptions options, CloudFoundryApplication application) throws CloudFoundryEnvironmentException {
+        this(byName(parse(json, options)), application);
+    }
+
+    private CloudFoundryEnvironment(CompactMap<CloudFoundryService> services, CloudFoundryApplication application) {
+        this(services, new ServiceIndex(services.values()), application);
+    }
+
+    private CloudFoundryEnvironment(CompactMap<CloudFoundryService> services, ServiceIndex index, CloudFoundryApplication application) {
+        this.services = services;
+        this.index = index;
+        this.application = application;
+    }
+
+    /**
+     * Makes a copy of this environment with the same services, and their index, but a different application.
+     */
+    private CloudFoundryEnvironment withApplication(CloudFoundryApplication application) {
+        return new CloudFoundryEnvironment(services, index, application);
+    }
+
+    /**
+     * Creates an environment from services which have already been built, such as those read from an {@link EnvironmentCache}.
+     *
+     * @param environment the environment from which to obtain the other environment variables, or null if there is none
+     */
+    static CloudFoundryEnvironment of(List<CloudFoundryService> services, Environment environment) {
+        return new CloudFoundryEnvironment(byName(services), environment != null ? new CloudFoundryApplication(environment) : NO_APPLICATION);
+    }
+
+    private static CompactMap<CloudFoundryService> byName(List<CloudFoundryService> services) {
+        CompactMap.Builder<CloudFoundryService> byName = new CompactMap.Builder<>();
+        for (CloudFoundryService service : services) {
+            if (!byName.put(service.getName(), service)) throw new IllegalStateException("duplicate service name: " + service.getName());
+        }
+        return byName.build();
+    }
+
+    /**
+     * Creates an environment from a `VCAP_SERVICES` document held as UTF-8 bytes.
+     *
+     * @param json the document
+     * @return the environment
+     * @throws CloudFoundryEnvironmentException if the document is malformed
+     */
+    public static CloudFoundryEnvironment fromJson(byte[] json) throws CloudFoundryEnvironmentException {
+        return fromJson(json, ParsingOptions.defaults());
+    }
+
+    /**
+     * Creates an environment from a `VCAP_SERVICES` document held as UTF-8 bytes, parsing it as directed by some options. If credentials are {@linkplain ParsingOptions#lazyCredentials() parsed lazily}, the environment keeps the array, and its contents must not be changed.
+     *
+     * @param json    the document
+     * @param options options controlling how the document is parsed
+     * @return the environment
+     * @throws CloudFoundryEnvironmentException if the document is malformed
+     */
+    public static CloudFoundryEnvironment fromJson(byte[] json, ParsingOptions options) throws CloudFoundryEnvironmentException {
+        return fromJson(ByteBuffer.wrap(json), options);
+    }
+
+    /**
+     * Creates an environment from a `VCAP_SERVICES` document held as UTF-8 bytes in a buffer. The document is the buffer's remaining bytes; the buffer's position is not changed. The bytes are parsed where they lie, so a direct or memory-mapped buffer is not copied onto the heap. If credentials are {@linkplain ParsingOptions#lazyCredentials() parsed lazily}, the environment keeps the buffer, and its contents must not be changed.
+     *
+     * @param json the document
+     * @return the environment
+     * @throws CloudFoundryEnvironmentException if the document is malformed
+     */
+    public static CloudFoundryEnvironment fromJson(ByteBuffer json) throws CloudFoundryEnvironmentException {
+        return fromJson(json, ParsingOptions.defaults());
+    }
+
+    /**
+     * Creates an environment from a `VCAP_SERVICES` document held as UTF-8 bytes in a buffer, as with {@link #fromJson(ByteBuffer)}, parsing it as directed by some options.
+     *
+     * @param json    the document
+     * @param options options controlling how the document is parsed
+     * @return the environment
+     * @throws CloudFoundryEnvironmentException if the document is malformed
+     */
+    public static CloudFoundryEnvironment fromJson(ByteBuffer json, ParsingOptions options) throws CloudFoundryEnvironmentException {
+        return new CloudFoundryEnvironment(JsonSource.of(json), options, NO_APPLICATION);
+    }
 
-        services = rootNode.values().stream()
-                .map(this::asCollection)
-                .flatMap(Collection::stream)
-                .map(this::asMap)
-                .map(this::createService)
-                .collect(Collectors.toMap(CloudFoundryService::getName, Function.identity()));
+    /**
+     * Creates an environment from a `VCAP_SERVICES` document read from a stream of UTF-8 bytes. The stream is read to the end, but not closed.
+     *
+     * @param json the document
+     * @return the environment
+     * @throws CloudFoundryEnvironmentException if the stream could not be read, or the document is malformed
+     */
+    public static CloudFoundryEnvironment fromJson(InputStream json) throws CloudFoundryEnvironmentException {
+        return fromJson(json, ParsingOptions.defaults());
     }
 
-    private Map<?, ?> parse(String json) throws CloudFoundryEnvironmentException {
+    /**
+     * Creates an environment from a `VCAP_SERVICES` document read from a stream of UTF-8 bytes, as with {@link #fromJson(InputStream)}, parsing it as directed by some options. Reading stops as soon as the document is longer than the options' {@linkplain ParsingLimits#getMaxLength() length limit}.
+     *
+     * @param json    the document
+     * @param options options controlling how the document is parsed
+     * @return the environment
+     * @throws CloudFoundryEnvironmentException if the stream could not be read, or the document is too long or malformed
+     */
+    public static CloudFoundryEnvironment fromJson(InputStream json, ParsingOptions options) throws CloudFoundryEnvironmentException {
+        long maxLength = options.getLimits().getMaxLength();
+        ByteArrayOutputStream buffer = new ByteArrayOutputStream();
+        byte[] block = new byte[8192];
         try {
-            return OBJECT_MAPPER.readValue(json, Map.class);
+            int count;
+            while ((count = json.read(block)) != -1) {
+                buffer.write(block, 0, count);
+                if (buffer.size() > maxLength) throw new CloudFoundryEnvironmentException("JSON is longer than the limit of " + maxLength);
+            }
         } catch (IOException e) {
-            throw new CloudFoundryEnvironmentException("error parsing JSON: " + json, e);
+            throw new CloudFoundryEnvironmentException("error reading JSON", e);
         }
+        return fromJson(buffer.toByteArray(), options);
     }
 
-    private CloudFoundryService createService(Map<?, ?> serviceInstanceNode) {
-        String name = (String) serviceInstanceNode.get("name");
-        String label = (String) serviceInstanceNode.get("label");
-        String plan = (String) serviceInstanceNode.get("plan");
-        Set<String> tags = asCollection(serviceInstanceNode.get("tags")).stream()
-                .map(String.class::cast)
-                .collect(Collectors.toSet());
+    /**
+     * Creates an environment from a `VCAP_SERVICES` document in a UTF-8 file. This is useful where the document is too large to fit in an environment variable. The file is memory-mapped and parsed straight from the mapping; if credentials are {@linkplain ParsingOptions#lazyCredentials() parsed lazily}, the environment keeps the mapping, and the file must not be changed.
+     *
+     * @param path the file
+     * @return the environment
+     * @throws CloudFoundryEnvironmentException if the file could not be read, or the document is malformed
+     */
+    public static CloudFoundryEnvironment fromFile(Path path) throws CloudFoundryEnvironmentException {
+        return fromFile(path, ParsingOptions.defaults());
+    }
+
+    /**
+     * Creates an environment from a `VCAP_SERVICES` document in a UTF-8 file, as with {@link #fromFile(Path)}, parsing it as directed by some options. A file longer than the options' {@linkplain ParsingLimits#getMaxLength() length limit} is rejected without being mapped.
+     *
+     * @param path    the file
+     * @param options options controlling how the document is parsed
+     * @return the environment
+     * @throws CloudFoundryEnvironmentException if the file could not be read, or the document is too long or malformed
+     */
+    public static CloudFoundryEnvironment fromFile(Path path, ParsingOptions options) throws CloudFoundryEnvironmentException {
+        ByteBuffer json;
+        long maxLength = options.getLimits().getMaxLength();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > maxLength) throw new CloudFoundryEnvironmentException("JSON in " + path + " is longer than the limit of " + maxLength);
+            json = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            throw new CloudFoundryEnvironmentException("error reading JSON from " + path, e);
+        }
+        return fromJson(json, options);
+    }
 
-        Map credentials = asMap(serviceInstanceNode.get("credentials"));
-        if (credentials == null) {
-            credentials = new HashMap<>();
+    private static List<CloudFoundryService> parse(JsonSource json, ParsingOptions options) throws CloudFoundryEnvironmentException {
+        try {
+            return ServiceParser.parse(json, options);
+        } catch (IOException e) {
+            throw new CloudFoundryEnvironmentException("error parsing JSON: " + e.getMessage(), e);
         }
+    }
 
-        return new CloudFoundryService(name, label, plan, tags, castKeysToString(credentials));
+    /**
+     * Makes a copy of this environment with a service added, or, if there is already a service with the same name, replaced in its existing position. The copy shares all the other services with this environment, so keeping both costs little more than keeping one.
+     *
+     * @param service the service
+     * @return the new environment
+     */
+    public CloudFoundryEnvironment withService(CloudFoundryService service) {
+        return new CloudFoundryEnvironment(services.with(service.getName(), service), application);
     }
 
-    private Collection<?> asCollection(Object o) {
-        return (Collection<?>) o;
+    /**
+     * Makes a copy of this environment without a service, sharing all the other services with this environment.
+     *
+     * @param serviceName the name of the service
+     * @return the new environment, or this environment if there is no such service
+     */
+    public CloudFoundryEnvironment withoutService(String serviceName) {
+        if (!services.containsKey(serviceName)) return this;
+        return new CloudFoundryEnvironment(services.without(serviceName), application);
     }
 
-    private Map<?, ?> asMap(Object o) {
-        return (Map<?, ?>) o;
+    /**
+     * Makes a copy of this environment in which the credentials of a service have been changed by a patch. Only the changed parts of the credentials are copied: the other services, and any maps and lists in the credentials which are not on the path to a change, are shared with this environment.
+     *
+     * @param serviceName the name of the service
+     * @param patch       the changes to make to its credentials
+     * @return the new environment
+     * @throws NoSuchElementException   if there is no such service
+     * @throws IllegalArgumentException if the patch cannot be applied to the credentials, or one of its tests fails
+     */
+    public CloudFoundryEnvironment withPatch(String serviceName, CredentialPatch patch) throws NoSuchElementException {
+        CloudFoundryService service = getService(serviceName);
+        return withService(service.withCredentials(patch.apply(service.getCredentials())));
     }
 
     /**
-     * Can't use Collectors::toMap because it chokes on null values
+     * Gets information about the running application and instance, from the environment variables other than `VCAP_SERVICES`. Each variable is only read and parsed when it is first asked for. An environment created from JSON, rather than from environment variables, has an application about which nothing is known, and whose methods all throw {@link NoSuchElementException}.
+     *
+     * @return the application
      */
-    private Map<String, Object> castKeysToString(Map<?, ?> map) {
-        Map<String, Object> credentials = new HashMap<>();
-        map.forEach((k, v) -> credentials.put((String) k, v));
-        return credentials;
+    public CloudFoundryApplication getApplication() {
+        return application;
     }
 
     public Set<String> getServiceNames() {
         return services.keySet();
     }
 
+    /**
+     * Gets all the services, in the order in which they appear in `VCAP_SERVICES`.
+     *
+     * @return the services
+     */
+    public Collection<CloudFoundryService> getServices() {
+        return services.values();
+    }
+
+    /**
+     * Finds the services which meet some criteria. The services are indexed by label, plan, and tag when the environment is constructed, so this does not have to look at every service.
+     *
+     * @param criteria the criteria
+     * @return the services which meet the criteria, in the order in which they appear in `VCAP_SERVICES`
+     */
+    public List<CloudFoundryService> find(ServiceCriteria criteria) {
+        return index.find(criteria);
+    }
+
+    /**
+     * Finds the services which have a given label.
+     *
+     * @param label the label
+     * @return the services which have the label, in the order in which they appear in `VCAP_SERVICES`
+     * @throws NullPointerException if the label is null
+     */
+    public List<CloudFoundryService> findByLabel(String label) {
+        return find(ServiceCriteria.any().label(label));
+    }
+
+    /**
+     * Finds the services which have all of some tags.
+     *
+     * @param tags the tags
+     * @return the services which have all the tags
+     * @see ServiceCriteria#withAnyTag(String...)
+     */
+    public List<CloudFoundryService> findByTags(String... tags) {
+        return find(ServiceCriteria.any().withAllTags(tags));
+    }
+
+    /**
+     * Binds the credentials of every service with a given label to a new instance of a class, as with {@link CloudFoundryService#bind(Class)}.
+     *
+     * @param label the label
+     * @param type  the class to bind to
+     * @param <T>   the class to bind to
+     * @return instances of the class, one for each service with the label, in the order in which they appear in `VCAP_SERVICES`
+     * @throws NullPointerException if the label is null
+     */
+    public <T> List<T> bindAll(String label, Class<T> type) {
+        List<CloudFoundryService> services = findByLabel(label);
+        List<T> bound = new ArrayList<>(services.size());
+        for (CloudFoundryService service : services) {
+            bound.add(service.bind(type));
+        }
+        return bound;
+    }
+
+    /**
+     * Gets all the services as a flat set of properties, with keys like "vcap.services.myapp-db.credentials.uri". The properties are built on the first call, and kept; if credentials are {@linkplain ParsingOptions#lazyCredentials() parsed lazily}, that first call parses all of them.
+     *
+     * @return the properties
+     * @throws IllegalStateException if two credentials flatten to the same property
+     */
+    public CloudFoundryProperties getProperties() {
+        CloudFoundryProperties properties = this.properties;
+        if (properties == null) {
+            properties = CloudFoundryProperties.of(services.values());
+            this.properties = properties;
+        }
+        return properties;
+    }
+
     /**
      * Gets information about a particular service by name.
      *
@@ -101,4 +424,26 @@ public class CloudFoundryEnvironment {
         return service;
     }
 
+    /**
+     * Gets information about a particular service by name, if there is such a service. Unlike {@link #getService(String)}, this does not throw an exception if there is no such service.
+     *
+     * @param serviceName the name of the service to get
+     * @return information about the service with the given name, or nothing if there is no such service
+     * @see #getServiceOrDefault(String, CloudFoundryService)
+     */
+    public Optional<CloudFoundryService> findService(String serviceName) {
+        return Optional.ofNullable(services.get(serviceName));
+    }
+
+    /**
+     * Gets information about a particular service by name, or a default if there is no such service. This never allocates any memory, whether the service is found or not, which makes it suitable for probing for optional services on a hot path.
+     *
+     * @param serviceName    the name of the service to get
+     * @param defaultService the service to return if there is no such service, which may be null
+     * @return information about the service with the given name, or the default
+     */
+    public CloudFoundryService getServiceOrDefault(String serviceName, CloudFoundryService defaultService) {
+        return services.getOrDefault(serviceName, defaultService);
+    }
+
 }
@@ -0,0 +1,220 @@
+package io.pivotal.labs.cfenv;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * A flattened, read-only view of all the services in an environment, as properties with dotted keys, in the form used by Spring Boot and other configuration systems. For a service called "myapp-db", there are properties like:
+ *
+ * ----
+ * vcap.services.myapp-db.name=myapp-db
+ * vcap.services.myapp-db.label=postgresql
+ * vcap.services.myapp-db.plan=standard
+ * vcap.services.myapp-db.tags[0]=relational
+ * vcap.services.myapp-db.credentials.uri=postgres://...
+ * vcap.services.myapp-db.credentials.ports[0]=5432
+ * ----
+ *
+ * Nested maps in the credentials contribute a key for each of their entries, and lists a key for each of their elements; the values are the strings, numbers, booleans, and nulls at the leaves. Keys which themselves contain dots or brackets can make two different credentials flatten to the same property, such as `{"a.b": 1}` and `{"a": {"b": 2}}`; rather than one silently hiding the other, building the properties then fails with an {@link IllegalStateException} naming the key.
+ *
+ * The properties are built once, when first asked for, and kept in a sorted array, with a hash index over it; looking up a key takes constant time, and iteration is in key order. Ranges of keys are available as views through the {@link SortedMap} methods, or more conveniently through {@link #withPrefix(String)}. As the `SortedMap` contract requires, asking a view for a range which reaches outside its own throws an {@link IllegalArgumentException}.
+ */
+public final class CloudFoundryProperties extends AbstractMap<String, Object> implements SortedMap<String, Object> {
+
+    private static final String PREFIX = "vcap.services.";
+
+    private final String[] keys;
+    private final Object[] values;
+    private final int[] slots;
+    private final int from;
+    private final int to;
+    private final String low;
+    private final String high;
+
+    /**
+     * Creates a view of the keys between two indexes, which are those between two bounds: an inclusive low bound, and an exclusive high bound, either of which may be null, meaning unbounded.
+     */
+    private CloudFoundryProperties(String[] keys, Object[] values, int[] slots, int from, int to, String low, String high) {
+        this.keys = keys;
+        this.values = values;
+        this.slots = slots;
+        this.from = from;
+        this.to = to;
+        this.low = low;
+        this.high = high;
+    }
+
+    static CloudFoundryProperties of(Collection<CloudFoundryService> services) {
+        TreeMap<String, Object> properties = new TreeMap<>();
+        for (CloudFoundryService service : services) {
+            String prefix = PREFIX + service.getName() + ".";
+            properties.put(prefix + "name", service.getName());
+            properties.put(prefix + "label", service.getLabel());
+            properties.put(prefix + "plan", service.getPlan());
+            flatten(properties, new StringBuilder(prefix).append("tags"), service.getTags());
+            flatten(properties, new StringBuilder(prefix).append("credentials"), service.getCredentials());
+        }
+
+        String[] keys = properties.keySet().toArray(new String[properties.size()]);
+        Object[] values = properties.values().toArray();
+        return new CloudFoundryProperties(keys, values, KeyIndex.build(keys, keys.length), 0, keys.length, null, null);
+    }
+
+    /**
+     * Adds properties for a value, extending the key in place, and restoring it afterwards.
+     */
+    private static void flatten(Map<String, Object> properties, StringBuilder key, Object value) {
+        int length = key.length();
+        if (value instanceof Map) {
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                flatten(properties, key.append('.').append(entry.getKey()), entry.getValue());
+                key.setLength(length);
+            }
+        } else if (value instanceof Collection) {
+            int index = 0;
+            for (Object element : (Collection<?>) value) {
+                flatten(properties, key.append('[').append(index++).append(']'), element);
+                key.setLength(length);
+            }
+        } else {
+            String flatKey = key.toString();
+            if (properties.containsKey(flatKey)) throw new IllegalStateException("two credentials flatten to the same property: " + flatKey);
+            properties.put(flatKey, value);
+        }
+    }
+
+    /**
+     * Gets the properties whose keys start with a given prefix, such as "vcap.services.myapp-db.credentials.".
+     *
+     * @param prefix the prefix
+     * @return a view of the properties with the given prefix
+     * @throws IllegalArgumentException if this is a view, and the prefix reaches outside it
+     */
+    public CloudFoundryProperties withPrefix(String prefix) {
+        return subMap(prefix, prefix + Character.MAX_VALUE);
+    }
+
+    @Override
+    public Object get(Object key) {
+        int index = indexOf(key);
+        return index >= 0 ? values[index] : null;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    private int indexOf(Object key) {
+        int index = KeyIndex.find(keys, keys.length, slots, key);
+        return index >= from && index < to ? index : -1;
+    }
+
+    @Override
+    public int size() {
+        return to - from;
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return new AbstractSet<Entry<String, Object>>() {
+            @Override
+            public Iterator<Entry<String, Object>> iterator() {
+                return new Iterator<Entry<String, Object>>() {
+                    private int index = from;
+
+                    @Override
+                    public boolean hasNext() {
+                        return index < to;
+                    }
+
+                    @Override
+                    public Entry<String, Object> next() {
+                        if (index >= to) throw new NoSuchElementException();
+                        Entry<String, Object> entry = new SimpleImmutableEntry<>(keys[index], values[index]);
+                        ++index;
+                        return entry;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return to - from;
+            }
+        };
+    }
+
+    @Override
+    public Comparator<? super String> comparator() {
+        return null;
+    }
+
+    @Override
+    public CloudFoundryProperties subMap(String fromKey, String toKey) {
+        if (fromKey.compareTo(toKey) > 0) throw new IllegalArgumentException("fromKey > toKey");
+        checkLowBound(fromKey);
+        checkHighBound(toKey);
+        return range(boundOf(fromKey), boundOf(toKey), fromKey, toKey);
+    }
+
+    @Override
+    public CloudFoundryProperties headMap(String toKey) {
+        checkHighBound(toKey);
+        return range(from, boundOf(toKey), low, toKey);
+    }
+
+    @Override
+    public CloudFoundryProperties tailMap(String fromKey) {
+        checkLowBound(fromKey);
+        return range(boundOf(fromKey), to, fromKey, high);
+    }
+
+    /**
+     * Checks that a key can be the inclusive low bound of a view of this view: it must lie inside this view's range.
+     */
+    private void checkLowBound(String key) {
+        if ((low != null && key.compareTo(low) < 0) || (high != null && key.compareTo(high) >= 0)) throw new IllegalArgumentException("key out of range: " + key);
+    }
+
+    /**
+     * Checks that a key can be the exclusive high bound of a view of this view: it may equal this view's own high bound.
+     */
+    private void checkHighBound(String key) {
+        if ((low != null && key.compareTo(low) < 0) || (high != null && key.compareTo(high) > 0)) throw new IllegalArgumentException("key out of range: " + key);
+    }
+
+    /**
+     * Finds the index of the first key in this view which is not less than a given key.
+     */
+    private int boundOf(String key) {
+        int index = Arrays.binarySearch(keys, from, to, key);
+        return index >= 0 ? index : -index - 1;
+    }
+
+    private CloudFoundryProperties range(int from, int to, String low, String high) {
+        return new CloudFoundryProperties(keys, values, slots, from, to, low, high);
+    }
+
+    @Override
+    public String firstKey() {
+        if (from == to) throw new NoSuchElementException();
+        return keys[from];
+    }
+
+    @Override
+    public String lastKey() {
+        if (from == to) throw new NoSuchElementException();
+        return keys[to - 1];
+    }
+
+}
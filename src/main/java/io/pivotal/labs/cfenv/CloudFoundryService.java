@@ -9,28 +9,64 @@ import java.security.cert.Certificate;
 import java.security.cert.CertificateException;
 import java.security.spec.InvalidKeySpecException;
 import java.util.Arrays;
-import java.util.List;
 import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.Optional;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.function.Supplier;
 
 /**
  * Information about a service. The information comprises some metadata - name, label, plan, and tags - and some structured credentials.
  */
 public class CloudFoundryService {
 
+    private static final Object MISSING = new Object();
+
     private final String name;
     private final String label;
     private final String plan;
     private final Set<String> tags;
-    private final Map<String, Object> credentials;
+    private volatile Map<String, Object> credentials;
+    private Supplier<Map<String, Object>> credentialsLoader;
+    private final ConcurrentMap<CredentialPath, Map<?, ?>> containers;
+    private volatile ServiceUri serviceUri;
+    private volatile long fingerprint;
 
     public CloudFoundryService(String name, String label, String plan, Set<String> tags, Map<String, Object> credentials) {
+        this(name, label, plan, tags, credentials, null, false);
+    }
+
+    /**
+     * Creates a service whose credentials are either given, or loaded on first use. The loader is called at most once, and the credentials it returns are then shared by all threads. Containers of {@link CredentialPath}s may only be cached if the credentials are immutable.
+     *
+     * Services parsed from an environment have their {@linkplain #getFingerprint() fingerprint} worked out here, as they are parsed, unless their credentials are loaded lazily.
+     */
+    CloudFoundryService(String name, String label, String plan, Set<String> tags, Map<String, Object> credentials, Supplier<Map<String, Object>> credentialsLoader, boolean cacheCredentialPaths) {
+        this(name, label, plan, tags, credentials, credentialsLoader, cacheCredentialPaths, 0);
+    }
+
+    /**
+     * Creates a service whose fingerprint is already known, as when it is read from an {@link EnvironmentCache}, so that it need not be worked out by loading the credentials.
+     */
+    CloudFoundryService(String name, String label, String plan, Set<String> tags, Map<String, Object> credentials, Supplier<Map<String, Object>> credentialsLoader, boolean cacheCredentialPaths, long fingerprint) {
         this.name = name;
         this.label = label;
         this.plan = plan;
-        this.tags = tags;
+        this.tags = tags != null ? tags : CompactSet.empty();
         this.credentials = credentials;
+        this.credentialsLoader = credentialsLoader;
+        this.containers = cacheCredentialPaths ? new ConcurrentHashMap<>() : null;
+        this.fingerprint = fingerprint;
+        if (fingerprint == 0 && credentials instanceof CompactMap) this.fingerprint = fingerprintOf(credentials);
+    }
+
+    /**
+     * Makes a copy of this service with different credentials, but the same metadata, and the same caching of credential paths.
+     */
+    CloudFoundryService withCredentials(Map<String, Object> credentials) {
+        return new CloudFoundryService(name, label, plan, tags, credentials, null, containers != null);
     }
 
     public String getName() {
@@ -50,14 +86,59 @@ public class CloudFoundryService {
     }
 
     /**
-     * Gets the credentials. This is parsed from a JSON object, and so may contain booleans, strings, integers, doubles, nulls, and lists or string-keyed maps of any of these.
+     * Gets the credentials. This is parsed from a JSON object, and so may contain booleans, strings, integers, doubles, nulls, and lists or string-keyed maps of any of these. Credentials parsed from an environment are immutable, as are the maps and lists within them, and keep the order of the document.
      *
      * @return the service's credentials
      */
     public Map<String, Object> getCredentials() {
+        Map<String, Object> credentials = this.credentials;
+        if (credentials == null) {
+            synchronized (this) {
+                credentials = this.credentials;
+                if (credentials == null && credentialsLoader != null) {
+                    credentials = credentialsLoader.get();
+                    this.credentials = credentials;
+                    credentialsLoader = null;
+                }
+            }
+        }
         return credentials;
     }
 
+    /**
+     * Tells whether the credentials can never change: those parsed from an environment, loaded lazily, read from a service binding directory, or patched, as opposed to a map passed to the public constructor, which its owner may still modify.
+     */
+    boolean hasImmutableCredentials() {
+        Map<String, Object> credentials = this.credentials;
+        if (credentials == null) return credentialsLoader != null;
+        return credentials instanceof CompactMap || credentials instanceof FileCredentials;
+    }
+
+    /**
+     * Gets a fingerprint of the service's contents: its metadata and credentials. Services with the same contents have the same fingerprint, and services with different contents almost certainly have different fingerprints, so comparing fingerprints is a cheap way to tell whether a service has changed between one environment and another; this is how {@link EnvironmentDiff} works.
+     *
+     * The fingerprint of a service parsed from an environment is worked out once, and kept. That of a service whose credentials are loaded lazily is worked out on the first call, which loads them. That of a service created with credentials which could be modified is worked out on every call.
+     *
+     * @return the fingerprint, which is never zero
+     */
+    public long getFingerprint() {
+        long fingerprint = this.fingerprint;
+        if (fingerprint != 0) return fingerprint;
+        Map<String, Object> credentials = getCredentials();
+        fingerprint = fingerprintOf(credentials);
+        if (credentials instanceof CompactMap) this.fingerprint = fingerprint;
+        return fingerprint;
+    }
+
+    private long fingerprintOf(Map<String, Object> credentials) {
+        long fingerprint = Fingerprint.of(name);
+        fingerprint = fingerprint * 31 + Fingerprint.of(label);
+        fingerprint = fingerprint * 31 + Fingerprint.of(plan);
+        fingerprint = fingerprint * 31 + Fingerprint.ofSet(tags);
+        fingerprint = Fingerprint.mix(fingerprint * 31 + Fingerprint.of(credentials));
+        return fingerprint != 0 ? fingerprint : 1;
+    }
+
     /**
      * Gets the service's URI. The URI is a top-level string entry in the {@linkplain #getCredentials() credentials} map with the key "uri".
      *
@@ -66,9 +147,35 @@ public class CloudFoundryService {
      * @throws URISyntaxException     if the URI is malformed
      */
     public URI getUri() throws NoSuchElementException, URISyntaxException {
-        String uri = (String) credentials.get("uri");
+        return getServiceUri().getUri();
+    }
+
+    /**
+     * Gets the service's URI, taken apart into its host, port, username, password, and so on. The URI of a service parsed from an environment is parsed on the first call, and then kept; that of a service created with credentials which could be modified is parsed on every call.
+     *
+     * @return the service's URI
+     * @throws NoSuchElementException if the service does not have a URI
+     * @throws URISyntaxException     if the URI is malformed
+     */
+    public ServiceUri getServiceUri() throws NoSuchElementException, URISyntaxException {
+        ServiceUri serviceUri = this.serviceUri;
+        if (serviceUri != null) return serviceUri;
+        String uri = (String) getCredentials().get("uri");
         if (uri == null) throw new NoSuchElementException("no uri in service: " + name);
-        return new URI(uri);
+        serviceUri = new ServiceUri(uri);
+        if (hasImmutableCredentials()) this.serviceUri = serviceUri;
+        return serviceUri;
+    }
+
+    /**
+     * Gets the service's URI, if it has one. Unlike {@link #getUri()}, this does not throw an exception if there is no URI.
+     *
+     * @return the service's URI, or nothing if the service does not have a URI
+     * @throws URISyntaxException if the URI is malformed
+     */
+    public Optional<URI> findUri() throws URISyntaxException {
+        if (serviceUri == null && getCredentials().get("uri") == null) return Optional.empty();
+        return Optional.of(getServiceUri().getUri());
     }
 
     /**
@@ -91,36 +198,268 @@ public class CloudFoundryService {
      * @throws NoSuchElementException if the path leads to a missing element, or through an element which is not a map
      */
     public Object getCredential(String... path) throws NoSuchElementException {
-        return getCredential(Arrays.asList(path));
+        checkPath(path);
+        return lookUp(getContainer(path), path);
+    }
+
+    /**
+     * Gets a particular credential from the {@linkplain #getCredentials() credentials}, as with {@link #getCredential(String...)}, by a compiled path.
+     *
+     * @param path the path to the credential in the credentials map
+     * @return the credential at the specified path
+     * @throws NoSuchElementException if the path leads to a missing element, or through an element which is not a map
+     */
+    public Object getCredential(CredentialPath path) throws NoSuchElementException {
+        return lookUp(getContainer(path), path.keys());
+    }
+
+    /**
+     * Gets a credential which is an integer that fits in an int. The credential is identified by a {@linkplain #getCredential(String...) path}, and may be a JSON number, or a string which spells an integer, such as "5432". Credentials parsed from an environment keep such values unboxed, so this involves no casting or unboxing.
+     *
+     * @param path the path to the credential in the credentials map, as a sequence of map keys
+     * @return the credential at the specified path
+     * @throws NoSuchElementException if the path leads to a missing element, or through an element which is not a map
+     * @throws ClassCastException     if the credential is not an integer, or does not fit in an int
+     */
+    public int getInt(String... path) throws NoSuchElementException {
+        checkPath(path);
+        return toInt(lookUpScalar(getContainer(path), path, CompactMap.LONG, "an int"), path);
+    }
+
+    public int getInt(CredentialPath path) throws NoSuchElementException {
+        return toInt(lookUpScalar(getContainer(path), path.keys(), CompactMap.LONG, "an int"), path.keys());
+    }
+
+    /**
+     * Gets a credential which is an integer that fits in a long, in the same way as {@link #getInt(String...)}.
+     *
+     * @param path the path to the credential in the credentials map, as a sequence of map keys
+     * @return the credential at the specified path
+     * @throws NoSuchElementException if the path leads to a missing element, or through an element which is not a map
+     * @throws ClassCastException     if the credential is not an integer, or does not fit in a long
+     */
+    public long getLong(String... path) throws NoSuchElementException {
+        checkPath(path);
+        return lookUpScalar(getContainer(path), path, CompactMap.LONG, "a long");
     }
 
-    private Object getCredential(List<String> path) {
-        Map<?, ?> map;
-        if (path.size() == 0) {
-            throw new IllegalArgumentException();
-        } else if (path.size() == 1) {
-            map = credentials;
+    public long getLong(CredentialPath path) throws NoSuchElementException {
+        return lookUpScalar(getContainer(path), path.keys(), CompactMap.LONG, "a long");
+    }
+
+    /**
+     * Gets a credential which is a JSON boolean.
+     *
+     * @param path the path to the credential in the credentials map, as a sequence of map keys
+     * @return the credential at the specified path
+     * @throws NoSuchElementException if the path leads to a missing element, or through an element which is not a map
+     * @throws ClassCastException     if the credential is not a boolean
+     */
+    public boolean getBoolean(String... path) throws NoSuchElementException {
+        checkPath(path);
+        return lookUpScalar(getContainer(path), path, CompactMap.BOOLEAN, "a boolean") != 0;
+    }
+
+    public boolean getBoolean(CredentialPath path) throws NoSuchElementException {
+        return lookUpScalar(getContainer(path), path.keys(), CompactMap.BOOLEAN, "a boolean") != 0;
+    }
+
+    /**
+     * Gets a credential which is a string.
+     *
+     * @param path the path to the credential in the credentials map, as a sequence of map keys
+     * @return the credential at the specified path, which may be null if the credential is a JSON null
+     * @throws NoSuchElementException if the path leads to a missing element, or through an element which is not a map
+     * @throws ClassCastException     if the credential is not a string
+     */
+    public String getString(String... path) throws NoSuchElementException {
+        return toString(getCredential(path), path);
+    }
+
+    public String getString(CredentialPath path) throws NoSuchElementException {
+        return toString(getCredential(path), path.keys());
+    }
+
+    /**
+     * Gets a particular credential, or a default if there is no such credential. Unlike {@link #getCredential(CredentialPath)}, this does not throw an exception for a missing credential; for credentials parsed from an environment, it never allocates any memory, whether the credential is found or not, which makes it suitable for probing for optional credentials on a hot path.
+     *
+     * @param path         the path to the credential in the credentials map
+     * @param defaultValue the value to return if there is no such credential
+     * @return the credential at the specified path, or the default if the path leads to a missing element, or through an element which is not a map
+     */
+    public Object getCredentialOrDefault(CredentialPath path, Object defaultValue) {
+        Map<?, ?> map = findContainer(path);
+        if (map == null) return defaultValue;
+        Object value = find(map, path.get(path.size() - 1));
+        return value != MISSING ? value : defaultValue;
+    }
+
+    /**
+     * Gets a credential which is an integer that fits in an int, as with {@link #getInt(CredentialPath)}, or a default if there is no such credential. Like {@link #getCredentialOrDefault(CredentialPath, Object)}, this does not allocate.
+     *
+     * @param path         the path to the credential in the credentials map
+     * @param defaultValue the value to return if there is no such credential
+     * @return the credential at the specified path, or the default
+     * @throws ClassCastException if the credential exists, but is not an integer, or does not fit in an int
+     */
+    public int getIntOrDefault(CredentialPath path, int defaultValue) {
+        return toInt(findScalar(path, CompactMap.LONG, "an int", defaultValue), path.keys());
+    }
+
+    public long getLongOrDefault(CredentialPath path, long defaultValue) {
+        return findScalar(path, CompactMap.LONG, "a long", defaultValue);
+    }
+
+    public boolean getBooleanOrDefault(CredentialPath path, boolean defaultValue) {
+        return findScalar(path, CompactMap.BOOLEAN, "a boolean", defaultValue ? 1 : 0) != 0;
+    }
+
+    public String getStringOrDefault(CredentialPath path, String defaultValue) {
+        return toString(getCredentialOrDefault(path, defaultValue), path.keys());
+    }
+
+    private void checkPath(String[] path) {
+        if (path.length == 0) throw new IllegalArgumentException();
+    }
+
+    /**
+     * Walks down a path to the map which should contain its last key, in a single pass, with one lookup in each map on the way.
+     *
+     * @return the map, or null if the path leads to a missing element, or through an element which is not a map
+     */
+    private Map<?, ?> findContainer(String[] path) {
+        Map<?, ?> map = getCredentials();
+        for (int i = 0; i < path.length - 1; i++) {
+            Object child = map.get(path[i]);
+            if (!(child instanceof Map)) return null;
+            map = (Map<?, ?>) child;
+        }
+        return map;
+    }
+
+    /**
+     * Walks down a compiled path to the map which should contain its last key, using and filling the cache of containers if there is one. Only containers which were found are cached, and the credentials cached are immutable, so the cache never goes stale.
+     */
+    private Map<?, ?> findContainer(CredentialPath path) {
+        if (containers == null || path.size() == 1) return findContainer(path.keys());
+        Map<?, ?> container = containers.get(path);
+        if (container == null) {
+            container = findContainer(path.keys());
+            if (container != null) containers.putIfAbsent(path, container);
+        }
+        return container;
+    }
+
+    private Map<?, ?> getContainer(String[] path) {
+        Map<?, ?> container = findContainer(path);
+        if (container == null) throw notFound(path);
+        return container;
+    }
+
+    private Map<?, ?> getContainer(CredentialPath path) {
+        Map<?, ?> container = findContainer(path);
+        if (container == null) throw notFound(path.keys());
+        return container;
+    }
+
+    /**
+     * Looks up a key in a map, in a single probe if the map is one of ours.
+     *
+     * @return the value, or {@link #MISSING} if there is no such key
+     */
+    private static Object find(Map<?, ?> map, String key) {
+        if (map instanceof CompactMap) {
+            CompactMap<?> compactMap = (CompactMap<?>) map;
+            int index = compactMap.indexOf(key);
+            return index >= 0 ? compactMap.valueAt(index) : MISSING;
         } else {
-            Object parent = getCredential(head(path));
-            if (!(parent instanceof Map)) throw notFound(path);
-            map = (Map<?, ?>) parent;
+            Object value = map.get(key);
+            return value != null || map.containsKey(key) ? value : MISSING;
         }
+    }
 
-        String tail = tail(path);
-        if (!map.containsKey(tail)) throw notFound(path);
-        return map.get(tail);
+    private Object lookUp(Map<?, ?> map, String[] path) {
+        Object value = find(map, path[path.length - 1]);
+        if (value == MISSING) throw notFound(path);
+        return value;
     }
 
-    private <E> List<E> head(List<E> list) {
-        return list.subList(0, list.size() - 1);
+    private long lookUpScalar(Map<?, ?> map, String[] path, byte kind, String description) {
+        if (map instanceof CompactMap) {
+            CompactMap<?> compactMap = (CompactMap<?>) map;
+            int index = compactMap.indexOf(path[path.length - 1]);
+            if (index < 0) throw notFound(path);
+            if (compactMap.kindAt(index) != kind) throw wrongType(path, description);
+            return compactMap.scalarAt(index);
+        } else {
+            Object value = lookUp(map, path);
+            if (CompactMap.kindOf(value) != kind) throw wrongType(path, description);
+            return CompactMap.scalarOf(value, kind);
+        }
     }
 
-    private <E> E tail(List<E> name) {
-        return name.get(name.size() - 1);
+    private long findScalar(CredentialPath path, byte kind, String description, long defaultValue) {
+        Map<?, ?> map = findContainer(path);
+        if (map == null) return defaultValue;
+        if (map instanceof CompactMap) {
+            CompactMap<?> compactMap = (CompactMap<?>) map;
+            int index = compactMap.indexOf(path.get(path.size() - 1));
+            if (index < 0) return defaultValue;
+            if (compactMap.kindAt(index) != kind) throw wrongType(path.keys(), description);
+            return compactMap.scalarAt(index);
+        } else {
+            Object value = find(map, path.get(path.size() - 1));
+            if (value == MISSING) return defaultValue;
+            if (CompactMap.kindOf(value) != kind) throw wrongType(path.keys(), description);
+            return CompactMap.scalarOf(value, kind);
+        }
+    }
+
+    private int toInt(long value, String[] path) {
+        if ((int) value != value) throw wrongType(path, "an int");
+        return (int) value;
+    }
+
+    private String toString(Object value, String[] path) {
+        if (value != null && !(value instanceof String)) throw wrongType(path, "a string");
+        return (String) value;
     }
 
-    private NoSuchElementException notFound(List<String> path) {
-        return new NoSuchElementException(String.join(".", path));
+    /**
+     * Creates an exception for a path which could not be followed, naming the path as far as the first element which is missing, or the element after the first which is not a map, as the recursive walk this replaced did. Working that out means walking the path again, but this is only done on the way to throwing an exception.
+     */
+    private NoSuchElementException notFound(String[] path) {
+        int length = 1;
+        Map<?, ?> map = getCredentials();
+        while (length < path.length) {
+            Object child = find(map, path[length - 1]);
+            if (child == MISSING) break;
+            ++length;
+            if (!(child instanceof Map)) break;
+            map = (Map<?, ?>) child;
+        }
+        return new NoSuchElementException(String.join(".", Arrays.asList(path).subList(0, length)));
+    }
+
+    private ClassCastException wrongType(String[] path, String description) {
+        return new ClassCastException("not " + description + ": " + String.join(".", path));
+    }
+
+    /**
+     * Binds the {@linkplain #getCredentials() credentials} to a new instance of a class. The class must have either a no-argument constructor, in which case its fields are set from the credentials, or a constructor whose parameter names are known, through {@link java.beans.ConstructorProperties} or `javac -parameters`, in which case it is called with values from the credentials. A field or parameter called `maxConns` is bound from a key "maxConns" or "max_conns"; ones with no such key keep their default values.
+     *
+     * Fields and parameters may be strings, ints, longs, doubles, and booleans, and their boxed forms, URIs, enums, maps, lists, and other classes, which are bound from nested maps in the same way. Integers may be given as numeric strings.
+     *
+     * How to bind a class is worked out once, and then reused, so binding repeatedly is cheap.
+     *
+     * @param type the class to bind to
+     * @param <T>  the class to bind to
+     * @return a new instance of the class, holding the credentials
+     * @throws IllegalArgumentException if the class cannot be bound to
+     * @throws ClassCastException       if a credential cannot be converted to the type of its field or parameter
+     */
+    public <T> T bind(Class<T> type) throws IllegalArgumentException {
+        return BindingPlan.of(type).bind(getCredentials(), "");
     }
 
     /**
@@ -0,0 +1,33 @@
+package io.pivotal.labs.cfenv;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.RandomAccess;
+
+/**
+ * An immutable list backed by an array of exactly the right size.
+ */
+final class CompactList<E> extends AbstractList<E> implements RandomAccess {
+
+    private final Object[] elements;
+
+    private CompactList(Object[] elements) {
+        this.elements = elements;
+    }
+
+    static <E> CompactList<E> copyOf(List<? extends E> list) {
+        return new CompactList<>(list.toArray());
+    }
+
+    @Override
+    @SuppressWarnings("unchecked")
+    public E get(int index) {
+        return (E) elements[index];
+    }
+
+    @Override
+    public int size() {
+        return elements.length;
+    }
+
+}
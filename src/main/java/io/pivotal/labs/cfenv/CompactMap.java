@@ -0,0 +1,271 @@
+package io.pivotal.labs.cfenv;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * An immutable map from strings, held as a pair of arrays. This costs far less memory than a {@link java.util.HashMap} for the small maps which make up most credentials, and has no entry objects to chase through on lookup. Iteration follows the order in which entries were added.
+ *
+ * Values which are integers or booleans, or strings which spell an integer, are also kept in unboxed form, in a parallel array of scalars, so that they can be read as primitives without casting or unboxing.
+ */
+final class CompactMap<V> extends AbstractMap<String, V> {
+
+    static final byte NONE = 0;
+    static final byte LONG = 1;
+    static final byte BOOLEAN = 2;
+
+    private static final CompactMap<?> EMPTY = new CompactMap<>(new String[0], new Object[0], null, null, 0);
+
+    private final String[] keys;
+    private final Object[] values;
+    private final byte[] kinds;
+    private final long[] scalars;
+    private final int[] slots;
+    private volatile long fingerprint;
+
+    private CompactMap(String[] keys, Object[] values, byte[] kinds, long[] scalars, int size) {
+        this.keys = keys;
+        this.values = values;
+        this.kinds = kinds;
+        this.scalars = scalars;
+        this.slots = KeyIndex.build(keys, size);
+    }
+
+    @SuppressWarnings("unchecked")
+    static <V> CompactMap<V> empty() {
+        return (CompactMap<V>) EMPTY;
+    }
+
+    static <V> CompactMap<V> copyOf(Map<String, ? extends V> map) {
+        if (map instanceof CompactMap) {
+            @SuppressWarnings("unchecked")
+            CompactMap<V> compactMap = (CompactMap<V>) map;
+            return compactMap;
+        }
+        Builder<V> builder = new Builder<>();
+        map.forEach(builder::put);
+        return builder.build();
+    }
+
+    int indexOf(Object key) {
+        return KeyIndex.find(keys, keys.length, slots, key);
+    }
+
+    String keyAt(int index) {
+        return keys[index];
+    }
+
+    @SuppressWarnings("unchecked")
+    V valueAt(int index) {
+        return (V) values[index];
+    }
+
+    /**
+     * Makes a copy of this map with an entry added, or replaced in its existing position. The copy shares this map's values, so a nested map which is not replaced is not copied.
+     */
+    CompactMap<V> with(String key, V value) {
+        Builder<V> builder = new Builder<>();
+        for (int i = 0; i < keys.length; i++) {
+            builder.put(keys[i], valueAt(i));
+        }
+        builder.put(key, value);
+        return builder.build();
+    }
+
+    /**
+     * Makes a copy of this map without an entry, sharing this map's other values.
+     */
+    CompactMap<V> without(String key) {
+        Builder<V> builder = new Builder<>();
+        for (int i = 0; i < keys.length; i++) {
+            if (!keys[i].equals(key)) builder.put(keys[i], valueAt(i));
+        }
+        return builder.build();
+    }
+
+    /**
+     * Gets the {@linkplain Fingerprint fingerprint} of this map's contents. This is worked out on the first call, from the fingerprints of the values, which for nested maps are themselves kept, and is then kept; zero means not yet worked out.
+     */
+    long fingerprint() {
+        long fingerprint = this.fingerprint;
+        if (fingerprint == 0) {
+            fingerprint = Fingerprint.ofMap(this);
+            if (fingerprint == 0) fingerprint = 1;
+            this.fingerprint = fingerprint;
+        }
+        return fingerprint;
+    }
+
+    /**
+     * Gets the kind of scalar held for a value: {@link #LONG}, {@link #BOOLEAN}, or {@link #NONE} if the value is not a scalar.
+     */
+    byte kindAt(int index) {
+        return kinds != null ? kinds[index] : NONE;
+    }
+
+    /**
+     * Gets the scalar held for a value, as a long, or 1 or 0 for a boolean.
+     */
+    long scalarAt(int index) {
+        return scalars[index];
+    }
+
+    /**
+     * Works out what kind of scalar, if any, a value can be held as. Strings are only taken to be integers if they are written as plainly as JSON would write them, and are small enough to fit in a long.
+     */
+    static byte kindOf(Object value) {
+        if (value instanceof Integer || value instanceof Long) return LONG;
+        if (value instanceof Boolean) return BOOLEAN;
+        if (value instanceof String && isInteger((String) value)) return LONG;
+        return NONE;
+    }
+
+    /**
+     * Converts a value to a scalar, given the kind found by {@link #kindOf(Object)}.
+     */
+    static long scalarOf(Object value, byte kind) {
+        if (kind == BOOLEAN) return (Boolean) value ? 1 : 0;
+        if (value instanceof String) return Long.parseLong((String) value);
+        return ((Number) value).longValue();
+    }
+
+    private static boolean isInteger(String string) {
+        int start = string.startsWith("-") ? 1 : 0;
+        int length = string.length() - start;
+        if (length < 1 || length > 18) return false;
+        if (length > 1 && string.charAt(start) == '0') return false;
+        for (int i = start; i < string.length(); i++) {
+            char c = string.charAt(i);
+            if (c < '0' || c > '9') return false;
+        }
+        return true;
+    }
+
+    @Override
+    public int size() {
+        return keys.length;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return indexOf(key) >= 0;
+    }
+
+    @Override
+    public V get(Object key) {
+        int index = indexOf(key);
+        return index >= 0 ? valueAt(index) : null;
+    }
+
+    @Override
+    public V getOrDefault(Object key, V defaultValue) {
+        int index = indexOf(key);
+        return index >= 0 ? valueAt(index) : defaultValue;
+    }
+
+    @Override
+    public Set<String> keySet() {
+        return new CompactSet(keys, keys.length, slots);
+    }
+
+    @Override
+    public Set<Entry<String, V>> entrySet() {
+        return new AbstractSet<Entry<String, V>>() {
+            @Override
+            public Iterator<Entry<String, V>> iterator() {
+                return new Iterator<Entry<String, V>>() {
+                    private int index;
+
+                    @Override
+                    public boolean hasNext() {
+                        return index < keys.length;
+                    }
+
+                    @Override
+                    public Entry<String, V> next() {
+                        if (index >= keys.length) throw new NoSuchElementException();
+                        Entry<String, V> entry = new SimpleImmutableEntry<>(keyAt(index), valueAt(index));
+                        ++index;
+                        return entry;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return keys.length;
+            }
+        };
+    }
+
+    /**
+     * Collects entries for a map. A key which is put more than once keeps its first position, but takes its last value, as with {@link Map#put(Object, Object)}.
+     */
+    static final class Builder<V> {
+        private String[] keys = new String[4];
+        private Object[] values = new Object[4];
+        private byte[] kinds;
+        private long[] scalars;
+        private int size;
+        private Map<String, Integer> index;
+
+        /**
+         * @return true if the key was not already present
+         */
+        boolean put(String key, V value) {
+            int existing = index != null ? index.getOrDefault(key, -1) : KeyIndex.find(keys, size, null, key);
+            if (existing >= 0) {
+                values[existing] = value;
+                putScalar(existing, value);
+                return false;
+            }
+
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+                if (kinds != null) {
+                    kinds = Arrays.copyOf(kinds, size * 2);
+                    scalars = Arrays.copyOf(scalars, size * 2);
+                }
+            }
+            keys[size] = key;
+            values[size] = value;
+            putScalar(size, value);
+            ++size;
+
+            if (index != null) {
+                index.put(key, size - 1);
+            } else if (size > KeyIndex.LINEAR_THRESHOLD) {
+                index = new HashMap<>();
+                for (int i = 0; i < size; i++) index.put(keys[i], i);
+            }
+            return true;
+        }
+
+        private void putScalar(int index, Object value) {
+            byte kind = kindOf(value);
+            if (kind == NONE && kinds == null) return;
+            if (kinds == null) {
+                kinds = new byte[keys.length];
+                scalars = new long[keys.length];
+            }
+            kinds[index] = kind;
+            scalars[index] = kind != NONE ? scalarOf(value, kind) : 0;
+        }
+
+        CompactMap<V> build() {
+            if (size == 0) return empty();
+            return new CompactMap<>(Arrays.copyOf(keys, size), Arrays.copyOf(values, size),
+                    kinds != null ? Arrays.copyOf(kinds, size) : null,
+                    scalars != null ? Arrays.copyOf(scalars, size) : null,
+                    size);
+        }
+    }
+
+}
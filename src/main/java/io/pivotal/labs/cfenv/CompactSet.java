@@ -0,0 +1,74 @@
+package io.pivotal.labs.cfenv;
+
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+/**
+ * An immutable set of strings, packed into an array. Like {@link CompactMap}, which uses it for its key set, it searches small sets linearly, and hashes into a table of slots for larger ones.
+ */
+final class CompactSet extends AbstractSet<String> {
+
+    private static final CompactSet EMPTY = new CompactSet(new String[0], 0, null);
+
+    private final String[] elements;
+    private final int size;
+    private final int[] slots;
+
+    CompactSet(String[] elements, int size, int[] slots) {
+        this.elements = elements;
+        this.size = size;
+        this.slots = slots;
+    }
+
+    static CompactSet empty() {
+        return EMPTY;
+    }
+
+    static CompactSet copyOf(Collection<String> strings) {
+        if (strings instanceof CompactSet) return (CompactSet) strings;
+        if (strings.isEmpty()) return EMPTY;
+        CompactMap.Builder<Object> builder = new CompactMap.Builder<>();
+        for (String string : strings) builder.put(string, null);
+        CompactMap<Object> map = builder.build();
+        String[] elements = new String[map.size()];
+        for (int i = 0; i < elements.length; i++) elements[i] = map.keyAt(i);
+        return new CompactSet(elements, elements.length, KeyIndex.build(elements, elements.length));
+    }
+
+    @Override
+    public boolean contains(Object o) {
+        return KeyIndex.find(elements, size, slots, o) >= 0;
+    }
+
+    @Override
+    public Iterator<String> iterator() {
+        return new Iterator<String>() {
+            private int index;
+
+            @Override
+            public boolean hasNext() {
+                return index < size;
+            }
+
+            @Override
+            public String next() {
+                if (index >= size) throw new NoSuchElementException();
+                return elements[index++];
+            }
+        };
+    }
+
+    @Override
+    public int size() {
+        return size;
+    }
+
+    @Override
+    public Object[] toArray() {
+        return Arrays.copyOf(elements, size, Object[].class);
+    }
+
+}
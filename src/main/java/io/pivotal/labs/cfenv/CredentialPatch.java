@@ -0,0 +1,348 @@
+package io.pivotal.labs.cfenv;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.function.UnaryOperator;
+
+/**
+ * A sequence of changes to a service's credentials, in the manner of a https://tools.ietf.org/html/rfc6902[JSON Patch]: values are added, removed, replaced, moved, copied, and tested at locations given as https://tools.ietf.org/html/rfc6901[JSON Pointers], such as "/db/password" or "/hosts/0". A patch is applied to an environment with {@link CloudFoundryEnvironment#withPatch(String, CredentialPatch)}:
+ *
+ * ----
+ * CloudFoundryEnvironment rotated = environment.withPatch("myapp-db", CredentialPatch.empty().test("/username", "admin").replace("/password", "s3cret"));
+ * ----
+ *
+ * Patches are immutable; each of the operation methods returns a copy with the operation added, so they can be chained. Pointers are checked when an operation is added, and operations are checked when the patch is applied.
+ *
+ * Applying a patch never modifies any credentials. Only the maps and lists on the paths to the changed locations are copied; everything else is shared with the credentials the patch was applied to.
+ */
+public final class CredentialPatch {
+
+    private static final CredentialPatch EMPTY = new CredentialPatch(new Operation[0]);
+
+    private final Operation[] operations;
+
+    private CredentialPatch(Operation[] operations) {
+        this.operations = operations;
+    }
+
+    /**
+     * Gets a patch which changes nothing.
+     *
+     * @return an empty patch
+     */
+    public static CredentialPatch empty() {
+        return EMPTY;
+    }
+
+    /**
+     * Adds a value. If the location is in a map, the value is put there, replacing any value already there; if it is in a list, the value is inserted before the element at the given index, or appended, if the index is "-".
+     *
+     * @param path  the location at which to add the value
+     * @param value the value, which may be a string, number, boolean, null, or a map or list of these; maps and lists are copied
+     * @return a copy of this patch which also adds the value
+     * @throws IllegalArgumentException if the path is not a valid pointer
+     */
+    public CredentialPatch add(String path, Object value) {
+        return with(new Operation("add", path, null, value));
+    }
+
+    /**
+     * Removes a value, which must exist.
+     *
+     * @param path the location of the value
+     * @return a copy of this patch which also removes the value
+     * @throws IllegalArgumentException if the path is not a valid pointer
+     */
+    public CredentialPatch remove(String path) {
+        return with(new Operation("remove", path, null, null));
+    }
+
+    /**
+     * Replaces a value, which must exist.
+     *
+     * @param path  the location of the value
+     * @param value the new value, as for {@link #add(String, Object)}
+     * @return a copy of this patch which also replaces the value
+     * @throws IllegalArgumentException if the path is not a valid pointer
+     */
+    public CredentialPatch replace(String path, Object value) {
+        return with(new Operation("replace", path, null, value));
+    }
+
+    /**
+     * Moves a value from one location to another, as if by removing it, then adding it.
+     *
+     * @param from the location of the value, which must not be a prefix of the new location
+     * @param path the new location
+     * @return a copy of this patch which also moves the value
+     * @throws IllegalArgumentException if either path is not a valid pointer
+     */
+    public CredentialPatch move(String from, String path) {
+        return with(new Operation("move", path, Objects.requireNonNull(from, "from"), null));
+    }
+
+    /**
+     * Copies a value from one location to another, as if by adding it.
+     *
+     * @param from the location of the value
+     * @param path the new location
+     * @return a copy of this patch which also copies the value
+     * @throws IllegalArgumentException if either path is not a valid pointer
+     */
+    public CredentialPatch copy(String from, String path) {
+        return with(new Operation("copy", path, Objects.requireNonNull(from, "from"), null));
+    }
+
+    /**
+     * Checks that a value is as expected. If it is not, the patch fails, and so none of it is applied. Numbers are equal if they have the same value, whatever their type.
+     *
+     * @param path  the location of the value
+     * @param value the expected value
+     * @return a copy of this patch which also checks the value
+     * @throws IllegalArgumentException if the path is not a valid pointer
+     */
+    public CredentialPatch test(String path, Object value) {
+        return with(new Operation("test", path, null, value));
+    }
+
+    private CredentialPatch with(Operation operation) {
+        Operation[] operations = Arrays.copyOf(this.operations, this.operations.length + 1);
+        operations[this.operations.length] = operation;
+        return new CredentialPatch(operations);
+    }
+
+    /**
+     * Applies this patch to some credentials. The operations are applied in order, each to the result of the last; if any fails, an exception is thrown, and since nothing is modified, the credentials are left as they were.
+     *
+     * @throws IllegalArgumentException if an operation cannot be applied, or a test fails
+     */
+    Map<String, Object> apply(Map<String, Object> credentials) {
+        Object document = credentials;
+        for (Operation operation : operations) {
+            document = operation.apply(document);
+        }
+        if (!(document instanceof Map)) throw new IllegalArgumentException("patch replaces the credentials with a value which is not a map");
+        @SuppressWarnings("unchecked")
+        Map<String, Object> patched = (Map<String, Object>) document;
+        return CompactMap.copyOf(patched);
+    }
+
+    @Override
+    public String toString() {
+        return Arrays.toString(operations);
+    }
+
+    private static final class Operation {
+        private final String op;
+        private final String pointer;
+        private final String[] path;
+        private final String fromPointer;
+        private final String[] from;
+        private final Object value;
+
+        private Operation(String op, String pointer, String fromPointer, Object value) {
+            this.op = op;
+            this.pointer = Objects.requireNonNull(pointer, "path");
+            this.path = parsePointer(pointer);
+            this.fromPointer = fromPointer;
+            this.from = fromPointer != null ? parsePointer(fromPointer) : null;
+            this.value = op.equals("test") ? value : immutableCopyOf(value);
+            if (op.equals("move") && isPrefix(from, path) && from.length < path.length) {
+                throw new IllegalArgumentException("cannot move " + fromPointer + " into itself");
+            }
+        }
+
+        private Object apply(Object document) {
+            try {
+                switch (op) {
+                    case "add":
+                        return add(document, path, 0, value);
+                    case "remove":
+                        return remove(document, path, 0);
+                    case "replace":
+                        return replace(document, path, 0, value);
+                    case "move":
+                        return add(remove(document, from, 0), path, 0, get(document, from));
+                    case "copy":
+                        return add(document, path, 0, get(document, from));
+                    case "test":
+                        if (!same(get(document, path), value)) throw new IllegalArgumentException("value is not " + value);
+                        return document;
+                    default:
+                        throw new IllegalStateException(op);
+                }
+            } catch (IllegalArgumentException e) {
+                throw new IllegalArgumentException("cannot " + this + ": " + e.getMessage(), e);
+            }
+        }
+
+        @Override
+        public String toString() {
+            return op + (fromPointer != null ? " " + fromPointer + " to" : "") + " " + pointer;
+        }
+    }
+
+    /**
+     * Splits a pointer into its reference tokens, unescaping "~1" to "/" and "~0" to "~". The empty pointer refers to the whole document.
+     */
+    private static String[] parsePointer(String pointer) {
+        if (pointer.isEmpty()) return new String[0];
+        if (!pointer.startsWith("/")) throw new IllegalArgumentException("pointer does not start with '/': " + pointer);
+        String[] tokens = pointer.substring(1).split("/", -1);
+        for (int i = 0; i < tokens.length; i++) {
+            String token = tokens[i];
+            for (int j = token.indexOf('~'); j >= 0; j = token.indexOf('~', j + 1)) {
+                char next = j + 1 < token.length() ? token.charAt(j + 1) : 0;
+                if (next != '0' && next != '1') throw new IllegalArgumentException("bad escape in pointer: " + pointer);
+            }
+            tokens[i] = token.replace("~1", "/").replace("~0", "~");
+        }
+        return tokens;
+    }
+
+    private static boolean isPrefix(String[] prefix, String[] path) {
+        return prefix.length <= path.length && Arrays.equals(prefix, Arrays.copyOf(path, prefix.length));
+    }
+
+    private static Object get(Object node, String[] path) {
+        for (String token : path) {
+            if (node instanceof Map) {
+                Map<?, ?> map = (Map<?, ?>) node;
+                if (!map.containsKey(token)) throw new IllegalArgumentException("no such key: " + token);
+                node = map.get(token);
+            } else if (node instanceof List) {
+                List<?> list = (List<?>) node;
+                node = list.get(indexOf(token, list.size() - 1));
+            } else {
+                throw new IllegalArgumentException("not a map or list at: " + token);
+            }
+        }
+        return node;
+    }
+
+    private static Object add(Object node, String[] path, int depth, Object value) {
+        if (depth == path.length) return value;
+        if (depth < path.length - 1) return update(node, path, depth, child -> add(child, path, depth + 1, value));
+        String token = path[depth];
+        if (node instanceof Map) return mapOf(node).with(token, value);
+        if (node instanceof List) {
+            List<Object> list = new ArrayList<>((List<?>) node);
+            list.add(token.equals("-") ? list.size() : indexOf(token, list.size()), value);
+            return CompactList.copyOf(list);
+        }
+        throw new IllegalArgumentException("not a map or list at: " + token);
+    }
+
+    private static Object remove(Object node, String[] path, int depth) {
+        if (depth == path.length) throw new IllegalArgumentException("cannot remove the credentials themselves");
+        if (depth < path.length - 1) return update(node, path, depth, child -> remove(child, path, depth + 1));
+        String token = path[depth];
+        if (node instanceof Map) {
+            if (!((Map<?, ?>) node).containsKey(token)) throw new IllegalArgumentException("no such key: " + token);
+            return mapOf(node).without(token);
+        }
+        if (node instanceof List) {
+            List<Object> list = new ArrayList<>((List<?>) node);
+            list.remove(indexOf(token, list.size() - 1));
+            return CompactList.copyOf(list);
+        }
+        throw new IllegalArgumentException("not a map or list at: " + token);
+    }
+
+    private static Object replace(Object node, String[] path, int depth, Object value) {
+        if (depth == path.length) return value;
+        return update(node, path, depth, child -> depth == path.length - 1 ? value : replace(child, path, depth + 1, value));
+    }
+
+    /**
+     * Replaces the child of a node named by one token of a path with an updated version of it, copying the node, but nothing else.
+     */
+    private static Object update(Object node, String[] path, int depth, UnaryOperator<Object> update) {
+        String token = path[depth];
+        if (node instanceof Map) {
+            Map<?, ?> map = (Map<?, ?>) node;
+            if (!map.containsKey(token)) throw new IllegalArgumentException("no such key: " + token);
+            return mapOf(node).with(token, update.apply(map.get(token)));
+        }
+        if (node instanceof List) {
+            List<Object> list = new ArrayList<>((List<?>) node);
+            int index = indexOf(token, list.size() - 1);
+            list.set(index, update.apply(list.get(index)));
+            return CompactList.copyOf(list);
+        }
+        throw new IllegalArgumentException("not a map or list at: " + token);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static CompactMap<Object> mapOf(Object node) {
+        return CompactMap.copyOf((Map<String, Object>) node);
+    }
+
+    private static int indexOf(String token, int max) {
+        if (token.isEmpty() || token.length() > 9 || (token.length() > 1 && token.charAt(0) == '0') || !token.chars().allMatch(c -> c >= '0' && c <= '9')) {
+            throw new IllegalArgumentException("not a list index: " + token);
+        }
+        int index = Integer.parseInt(token);
+        if (index > max) throw new IllegalArgumentException("index out of bounds: " + token);
+        return index;
+    }
+
+    /**
+     * Copies a value into the immutable forms used for parsed credentials, so that a patched environment is as immutable as a parsed one.
+     */
+    private static Object immutableCopyOf(Object value) {
+        if (value instanceof CompactMap || value instanceof CompactList) return value;
+        if (value instanceof Map) {
+            CompactMap.Builder<Object> map = new CompactMap.Builder<>();
+            for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                if (!(entry.getKey() instanceof String)) throw new IllegalArgumentException("map key is not a string: " + entry.getKey());
+                map.put((String) entry.getKey(), immutableCopyOf(entry.getValue()));
+            }
+            return map.build();
+        }
+        if (value instanceof Collection) {
+            List<Object> list = new ArrayList<>();
+            for (Object element : (Collection<?>) value) {
+                list.add(immutableCopyOf(element));
+            }
+            return CompactList.copyOf(list);
+        }
+        return value;
+    }
+
+    private static boolean same(Object a, Object b) {
+        if (a instanceof Number && b instanceof Number) {
+            Number x = (Number) a;
+            Number y = (Number) b;
+            return isIntegral(x) && isIntegral(y) ? x.longValue() == y.longValue() : x.doubleValue() == y.doubleValue();
+        }
+        if (a instanceof Map && b instanceof Map) {
+            Map<?, ?> x = (Map<?, ?>) a;
+            Map<?, ?> y = (Map<?, ?>) b;
+            if (x.size() != y.size()) return false;
+            for (Map.Entry<?, ?> entry : x.entrySet()) {
+                if (!y.containsKey(entry.getKey()) || !same(entry.getValue(), y.get(entry.getKey()))) return false;
+            }
+            return true;
+        }
+        if (a instanceof List && b instanceof List) {
+            List<?> x = (List<?>) a;
+            List<?> y = (List<?>) b;
+            if (x.size() != y.size()) return false;
+            for (int i = 0; i < x.size(); i++) {
+                if (!same(x.get(i), y.get(i))) return false;
+            }
+            return true;
+        }
+        return Objects.equals(a, b);
+    }
+
+    private static boolean isIntegral(Number number) {
+        return number instanceof Integer || number instanceof Long || number instanceof Short || number instanceof Byte;
+    }
+
+}
@@ -0,0 +1,83 @@
+package io.pivotal.labs.cfenv;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * A path to a credential, as a sequence of map keys, in the same form as is passed to {@link CloudFoundryService#getCredential(String...)}. Compiling a path once, and keeping it in a constant, saves the varargs array and path checks on every lookup:
+ *
+ * ----
+ * private static final CredentialPath MAX_CONNECTIONS = CredentialPath.of("pool", "max_conns");
+ *
+ * int maxConnections = service.getInt(MAX_CONNECTIONS);
+ * ----
+ *
+ * Paths are interned, so equal paths compiled in different places are usually the same object. Paths are immutable, and safe for use by multiple threads.
+ */
+public final class CredentialPath {
+
+    private static final int MAX_INTERNED = 4096;
+    private static final ConcurrentMap<List<String>, CredentialPath> INTERNED = new ConcurrentHashMap<>();
+
+    private final String[] keys;
+    private final int hashCode;
+
+    private CredentialPath(String[] keys) {
+        this.keys = keys;
+        this.hashCode = Arrays.hashCode(keys);
+    }
+
+    /**
+     * Compiles a path.
+     *
+     * @param keys the map keys which make up the path
+     * @return the path
+     * @throws IllegalArgumentException if there are no keys
+     */
+    public static CredentialPath of(String... keys) throws IllegalArgumentException {
+        if (keys.length == 0) throw new IllegalArgumentException("a path must have at least one key");
+        String[] copy = keys.clone();
+        for (String key : copy) Objects.requireNonNull(key, "a path cannot contain null keys");
+        List<String> list = Arrays.asList(copy);
+
+        CredentialPath path = INTERNED.get(list);
+        if (path != null) return path;
+        path = new CredentialPath(copy);
+        if (INTERNED.size() < MAX_INTERNED) {
+            CredentialPath existing = INTERNED.putIfAbsent(list, path);
+            if (existing != null) return existing;
+        }
+        return path;
+    }
+
+    String[] keys() {
+        return keys;
+    }
+
+    public int size() {
+        return keys.length;
+    }
+
+    public String get(int index) {
+        return keys[index];
+    }
+
+    @Override
+    public boolean equals(Object obj) {
+        return obj == this || obj instanceof CredentialPath && Arrays.equals(keys, ((CredentialPath) obj).keys);
+    }
+
+    @Override
+    public int hashCode() {
+        return hashCode;
+    }
+
+    @Override
+    public String toString() {
+        return String.join(".", keys);
+    }
+
+}
@@ -0,0 +1,264 @@
+package io.pivotal.labs.cfenv;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Spliterator;
+import java.util.Spliterators;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
+
+/**
+ * A query which finds values in the {@linkplain CloudFoundryService#getCredentials() credentials} of services. A query is a path through the credentials, written as map keys separated by dots, like a {@link CredentialPath}, but which may also contain:
+ *
+ * - `*`, which matches every value in a map, or every element of a list
+ * - `[n]`, which matches the element at index n of a list
+ * - `[*]`, which is the same as `*`
+ * - `['key']`, which matches a map key which contains dots or brackets
+ * - `..`, in place of a dot, which makes the next step match at any depth below, rather than just the next level down
+ *
+ * For example:
+ *
+ * ----
+ * uri                  the top-level uri
+ * nodes[*].hostname    the hostname of every node
+ * ..hostname           every hostname, however deeply nested
+ * *.ca_cert            the ca_cert in any top-level map
+ * ----
+ *
+ * Queries are compiled once, and may then be evaluated any number of times, by any number of threads. Results are found lazily, as the stream is consumed, in document order; JSON nulls in the credentials are returned as nulls.
+ */
+public final class CredentialQuery {
+
+    private static final int MAX_CACHED = 1024;
+    private static final ConcurrentMap<String, CredentialQuery> CACHE = new ConcurrentHashMap<>();
+
+    private final String expression;
+    private final Step[] steps;
+
+    private CredentialQuery(String expression, Step[] steps) {
+        this.expression = expression;
+        this.steps = steps;
+    }
+
+    /**
+     * Compiles a query. Recently compiled queries are cached, so compiling the same expression again is cheap.
+     *
+     * @param expression the query
+     * @return the compiled query
+     * @throws IllegalArgumentException if the query is malformed
+     */
+    public static CredentialQuery compile(String expression) throws IllegalArgumentException {
+        CredentialQuery query = CACHE.get(expression);
+        if (query != null) return query;
+        query = new CredentialQuery(expression, parse(expression));
+        if (CACHE.size() < MAX_CACHED) CACHE.putIfAbsent(expression, query);
+        return query;
+    }
+
+    /**
+     * Finds the values which match this query in a service's credentials.
+     *
+     * @param service the service
+     * @return the values, in document order
+     */
+    public Stream<Object> evaluate(CloudFoundryService service) {
+        return StreamSupport.stream(Spliterators.spliteratorUnknownSize(new Evaluation(service), Spliterator.ORDERED), false);
+    }
+
+    /**
+     * Finds the values which match this query in the credentials of all the services in an environment.
+     *
+     * @param environment the environment
+     * @return the values, service by service
+     */
+    public Stream<Object> evaluate(CloudFoundryEnvironment environment) {
+        return environment.getServices().stream().flatMap(this::evaluate);
+    }
+
+    @Override
+    public String toString() {
+        return expression;
+    }
+
+    /**
+     * One step of a query. A step matches map entries with a given key, or list elements with a given index, or, if it has neither, any entry or element. A descendant step matches at any depth.
+     */
+    private static final class Step {
+        private final String key;
+        private final int index;
+        private final boolean descendant;
+
+        private Step(String key, int index, boolean descendant) {
+            this.key = key;
+            this.index = index;
+            this.descendant = descendant;
+        }
+
+        private boolean matchesKey(Object key) {
+            return this.key != null ? this.key.equals(key) : index < 0;
+        }
+
+        private boolean matchesIndex(int index) {
+            return this.index >= 0 ? this.index == index : key == null;
+        }
+    }
+
+    private static Step[] parse(String expression) {
+        List<Step> steps = new ArrayList<>();
+        int length = expression.length();
+        int i = 0;
+        boolean descendant = false;
+        if (expression.startsWith("..")) {
+            descendant = true;
+            i = 2;
+        }
+
+        while (true) {
+            if (i == length) throw malformed(expression, i, "expected a step");
+            if (expression.charAt(i) == '[') {
+                int close = expression.indexOf(']', i);
+                if (close < 0) throw malformed(expression, i, "unclosed bracket");
+                String selector = expression.substring(i + 1, close);
+                if (selector.equals("*")) {
+                    steps.add(new Step(null, -1, descendant));
+                } else if (selector.length() >= 2 && selector.startsWith("'") && selector.endsWith("'")) {
+                    steps.add(new Step(selector.substring(1, selector.length() - 1), -1, descendant));
+                } else {
+                    steps.add(new Step(null, parseIndex(expression, i, selector), descendant));
+                }
+                i = close + 1;
+            } else {
+                int end = i;
+                while (end < length && expression.charAt(end) != '.' && expression.charAt(end) != '[') ++end;
+                if (end == i) throw malformed(expression, i, "expected a key");
+                String key = expression.substring(i, end);
+                steps.add(key.equals("*") ? new Step(null, -1, descendant) : new Step(key, -1, descendant));
+                i = end;
+            }
+
+            descendant = false;
+            if (i == length) break;
+            if (expression.startsWith("..", i)) {
+                descendant = true;
+                i += 2;
+            } else if (expression.charAt(i) == '.') {
+                ++i;
+            } else if (expression.charAt(i) != '[') {
+                throw malformed(expression, i, "expected a dot or a bracket");
+            }
+        }
+
+        return steps.toArray(new Step[steps.size()]);
+    }
+
+    private static int parseIndex(String expression, int position, String selector) {
+        if (selector.isEmpty() || selector.length() > 9) throw malformed(expression, position, "expected an index");
+        for (int i = 0; i < selector.length(); i++) {
+            if (!Character.isDigit(selector.charAt(i))) throw malformed(expression, position, "expected an index");
+        }
+        return Integer.parseInt(selector);
+    }
+
+    private static IllegalArgumentException malformed(String expression, int position, String problem) {
+        return new IllegalArgumentException(problem + " at position " + position + " in query: " + expression);
+    }
+
+    private static final class Frame {
+        private final Object value;
+        private final int stepIndex;
+
+        private Frame(Object value, int stepIndex) {
+            this.value = value;
+            this.stepIndex = stepIndex;
+        }
+    }
+
+    /**
+     * A depth-first walk through the credentials, driven by the consumer of the results. The stack holds frames, each a value and the index of the next step to apply to it; a value which has been through every step is a result.
+     */
+    private final class Evaluation implements Iterator<Object> {
+        private final CloudFoundryService service;
+        private Deque<Frame> stack;
+        private Object next;
+        private boolean hasNext;
+
+        private Evaluation(CloudFoundryService service) {
+            this.service = service;
+        }
+
+        @Override
+        public boolean hasNext() {
+            if (hasNext) return true;
+            if (stack == null) {
+                stack = new ArrayDeque<>();
+                stack.push(new Frame(service.getCredentials(), 0));
+            }
+
+            while (!stack.isEmpty()) {
+                Frame frame = stack.pop();
+                if (frame.stepIndex == steps.length) {
+                    next = frame.value;
+                    hasNext = true;
+                    return true;
+                }
+                apply(steps[frame.stepIndex], frame.stepIndex, frame.value);
+            }
+            return false;
+        }
+
+        @Override
+        public Object next() {
+            if (!hasNext()) throw new NoSuchElementException();
+            Object result = next;
+            next = null;
+            hasNext = false;
+            return result;
+        }
+
+        /**
+         * Pushes the values which a step leads to from a given value. They are pushed in reverse, so that they are popped in document order; for a descendant step, a matching value is pushed after (so popped before) the search beneath it.
+         */
+        private void apply(Step step, int stepIndex, Object value) {
+            if (!step.descendant) {
+                if (step.key != null && value instanceof Map) {
+                    Map<?, ?> map = (Map<?, ?>) value;
+                    Object child = map.get(step.key);
+                    if (child != null || map.containsKey(step.key)) stack.push(new Frame(child, stepIndex + 1));
+                    return;
+                }
+                if (step.index >= 0 && value instanceof List) {
+                    List<?> list = (List<?>) value;
+                    if (step.index < list.size()) stack.push(new Frame(list.get(step.index), stepIndex + 1));
+                    return;
+                }
+            }
+
+            List<Frame> frames = new ArrayList<>();
+            if (value instanceof Map) {
+                for (Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                    addFrames(frames, step, stepIndex, step.matchesKey(entry.getKey()), entry.getValue());
+                }
+            } else if (value instanceof Collection) {
+                int index = 0;
+                for (Object element : (Collection<?>) value) {
+                    addFrames(frames, step, stepIndex, step.matchesIndex(index++), element);
+                }
+            }
+            for (int i = frames.size() - 1; i >= 0; i--) stack.push(frames.get(i));
+        }
+
+        private void addFrames(List<Frame> frames, Step step, int stepIndex, boolean matches, Object child) {
+            if (matches) frames.add(new Frame(child, stepIndex + 1));
+            if (step.descendant && (child instanceof Map || child instanceof Collection)) frames.add(new Frame(child, stepIndex));
+        }
+    }
+
+}
@@ -0,0 +1,169 @@
+package io.pivotal.labs.cfenv;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+/**
+ * A template for text, such as a connection string, with placeholders for credentials:
+ *
+ * ----
+ * CredentialTemplate url = CredentialTemplate.compile("jdbc:postgresql://${myapp-db.credentials.hostname}:${myapp-db.credentials.port}/${myapp-db.credentials.name}");
+ * String jdbcUrl = url.render(environment);
+ * ----
+ *
+ * A placeholder names a service, and then, after ".credentials.", a {@linkplain CloudFoundryService#getCredential(String...) path} to a credential, with the map keys separated by dots. The credential is rendered as a string; a null credential is rendered as nothing.
+ *
+ * The template is parsed once, when it is compiled, into literal text and compiled {@link CredentialPath}s. The template also remembers the values it last resolved, and which services it resolved them from; when it is rendered again, only placeholders whose service has changed are resolved again, so rendering against the same environment, or one which shares most of its services, is little more than copying strings. This only applies to services whose credentials cannot change, such as those parsed from an environment; a service created with a map of credentials is resolved afresh every time, as the map may have been modified since.
+ *
+ * Templates are safe for use by multiple threads.
+ */
+public final class CredentialTemplate {
+
+    private static final String CREDENTIALS = ".credentials.";
+    private static final String[] NO_VALUES = new String[0];
+
+    private final String template;
+    private final String[] literals;
+    private final String[] serviceNames;
+    private final CredentialPath[] paths;
+    private volatile Resolution resolution;
+
+    private CredentialTemplate(String template, String[] literals, String[] serviceNames, CredentialPath[] paths) {
+        this.template = template;
+        this.literals = literals;
+        this.serviceNames = serviceNames;
+        this.paths = paths;
+    }
+
+    /**
+     * Compiles a template.
+     *
+     * @param template the text of the template
+     * @return the compiled template
+     * @throws IllegalArgumentException if a placeholder is unclosed, or does not name a service and a path to a credential
+     */
+    public static CredentialTemplate compile(String template) throws IllegalArgumentException {
+        List<String> literals = new ArrayList<>();
+        List<String> serviceNames = new ArrayList<>();
+        List<CredentialPath> paths = new ArrayList<>();
+
+        int position = 0;
+        int start;
+        while ((start = template.indexOf("${", position)) >= 0) {
+            int end = template.indexOf('}', start);
+            if (end < 0) throw new IllegalArgumentException("unclosed placeholder at position " + start + " in template: " + template);
+            String placeholder = template.substring(start + 2, end);
+            int credentials = placeholder.indexOf(CREDENTIALS);
+            if (credentials <= 0 || credentials + CREDENTIALS.length() == placeholder.length()) {
+                throw new IllegalArgumentException("placeholder at position " + start + " does not name a service and a credential in template: " + template);
+            }
+
+            literals.add(template.substring(position, start));
+            serviceNames.add(placeholder.substring(0, credentials));
+            paths.add(CredentialPath.of(placeholder.substring(credentials + CREDENTIALS.length()).split("\\.", -1)));
+            position = end + 1;
+        }
+        literals.add(template.substring(position));
+
+        return new CredentialTemplate(template,
+                literals.toArray(new String[literals.size()]),
+                serviceNames.toArray(new String[serviceNames.size()]),
+                paths.toArray(new CredentialPath[paths.size()]));
+    }
+
+    /**
+     * Renders this template.
+     *
+     * @param environment the environment in which to find the credentials
+     * @return the rendered text
+     * @throws NoSuchElementException if a service or credential is missing
+     */
+    public String render(CloudFoundryEnvironment environment) {
+        StringBuilder out = new StringBuilder(template.length() + 16 * paths.length);
+        render(environment, out);
+        return out.toString();
+    }
+
+    /**
+     * Renders this template into a string builder, which may be reused between renderings to avoid allocating a new one each time.
+     *
+     * @param environment the environment in which to find the credentials
+     * @param out         the builder to append the text to
+     * @throws NoSuchElementException if a service or credential is missing
+     */
+    public void render(CloudFoundryEnvironment environment, StringBuilder out) {
+        try {
+            render(environment, (Appendable) out);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * Renders this template into any appendable, such as a writer.
+     *
+     * @param environment the environment in which to find the credentials
+     * @param out         the appendable to append the text to
+     * @throws IOException            if the appendable does
+     * @throws NoSuchElementException if a service or credential is missing
+     */
+    public void render(CloudFoundryEnvironment environment, Appendable out) throws IOException {
+        String[] values = resolve(environment);
+        for (int i = 0; i < values.length; i++) {
+            out.append(literals[i]).append(values[i]);
+        }
+        out.append(literals[values.length]);
+    }
+
+    /**
+     * Resolves the placeholders, reusing the last resolution for services which are the same objects as before, and whose credentials are immutable, so that the same service always resolves to the same values.
+     */
+    private String[] resolve(CloudFoundryEnvironment environment) {
+        Resolution last = resolution;
+        CloudFoundryService[] services = null;
+        for (int i = 0; i < serviceNames.length; i++) {
+            CloudFoundryService service = environment.getService(serviceNames[i]);
+            if (services == null && !isReusable(last, i, service)) {
+                services = new CloudFoundryService[serviceNames.length];
+                for (int j = 0; j < i; j++) services[j] = last.services[j];
+            }
+            if (services != null) services[i] = service;
+        }
+        if (services == null) return last != null ? last.values : NO_VALUES;
+
+        String[] values = new String[serviceNames.length];
+        for (int i = 0; i < values.length; i++) {
+            if (isReusable(last, i, services[i])) {
+                values[i] = last.values[i];
+            } else {
+                Object value = services[i].getCredential(paths[i]);
+                values[i] = value != null ? value.toString() : "";
+            }
+        }
+        resolution = new Resolution(services, values);
+        return values;
+    }
+
+    private static boolean isReusable(Resolution last, int index, CloudFoundryService service) {
+        return last != null && last.services[index] == service && service.hasImmutableCredentials();
+    }
+
+    @Override
+    public String toString() {
+        return template;
+    }
+
+    private static final class Resolution {
+        private final CloudFoundryService[] services;
+        private final String[] values;
+
+        private Resolution(CloudFoundryService[] services, String[] values) {
+            this.services = services;
+            this.values = values;
+        }
+    }
+
+}
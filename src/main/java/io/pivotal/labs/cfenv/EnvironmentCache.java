@@ -0,0 +1,427 @@
+package io.pivotal.labs.cfenv;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * A binary file holding an environment which has already been parsed, so that applications which start many instances from the same `VCAP_SERVICES` can skip parsing it in each one. The file is written once, for example when the application is staged, or by the first instance to start, and then read in place of the JSON:
+ *
+ * ----
+ * CloudFoundryEnvironment environment = EnvironmentCache.load(System::getenv, Paths.get("/home/vcap/tmp/vcap-services.bin"));
+ * ----
+ *
+ * The file is memory-mapped, and only the service records - names, labels, plans, tags, and fingerprints - are decoded when it is loaded. A service's credentials are decoded from the mapping the first time they are used, just as with {@linkplain ParsingOptions#lazyCredentials() lazily parsed credentials}, and strings are decoded the first time they are needed, and then shared. Fingerprints are stored, so {@linkplain EnvironmentDiff diffing} a cached environment does not decode its credentials.
+ *
+ * The file records the length and SHA-256 hash of the JSON it was made from. It is only used if they match the current `VCAP_SERVICES`; otherwise, or if the file is missing or unreadable, the JSON is parsed, and the file is written afresh, if it can be. Files are written to a temporary file which is then moved into place, so a reader never sees a partly written file. The file also holds a CRC-32 checksum of its whole contents, which is checked when it is loaded, before anything in it is used, so a file which has been damaged is rejected, and the JSON parsed instead, rather than failing later, when credentials are decoded from it; checking it reads every page of the mapping once, which costs far less than parsing. The file holds the credentials in the clear, so it should be kept somewhere no more widely readable than the environment itself; on POSIX file systems, it is created readable only by its owner. Once loaded, an environment keeps the mapping, and the file must not be changed in place.
+ *
+ * The file consists of a header, a table of strings, the service records, and the credential trees. The header holds a magic number, a format version, the length of the file, the length and hash of the JSON, the numbers of strings and services, the offset of the trees, and the checksum, which is of every byte of the file but its own four. The strings are UTF-8, and everything else refers to them by number. Each service record holds the numbers of its name, label, plan, and tags, its fingerprint, and the offset of its credentials. The credentials are a tree of nodes, each a type byte followed by a value: nothing for null and booleans, an int or long or double for numbers, the number of a string for strings and very large numbers, and a count followed by that many entries or elements for maps and lists. All numbers are big-endian.
+ */
+public final class EnvironmentCache {
+
+    private static final long MAGIC = 0x4346_454e_5643_4143L;
+    private static final int VERSION = 2;
+    private static final int HASH_LENGTH = 32;
+    private static final int CHECKSUM_OFFSET = 8 + 4 + 4 + 8 + HASH_LENGTH + 4 + 4 + 4;
+    private static final int HEADER_LENGTH = CHECKSUM_OFFSET + 4;
+    private static final int NONE = -1;
+
+    private static final byte NULL = 0;
+    private static final byte FALSE = 1;
+    private static final byte TRUE = 2;
+    private static final byte INT = 3;
+    private static final byte LONG = 4;
+    private static final byte DOUBLE = 5;
+    private static final byte STRING = 6;
+    private static final byte BIG_INTEGER = 7;
+    private static final byte BIG_DECIMAL = 8;
+    private static final byte MAP = 9;
+    private static final byte LIST = 10;
+
+    private EnvironmentCache() {}
+
+    /**
+     * Loads the environment for the current `VCAP_SERVICES` from a cache file, or, if the file does not match it, parses it, and writes the file.
+     *
+     * @param environment the underlying environment from which to obtain the environment variables
+     * @param cacheFile   the cache file, which need not exist
+     * @return the environment
+     * @throws CloudFoundryEnvironmentException if the variable is missing, or the cache file does not match and the JSON is malformed
+     */
+    public static CloudFoundryEnvironment load(Environment environment, Path cacheFile) throws CloudFoundryEnvironmentException {
+        return load(environment, cacheFile, ParsingOptions.defaults());
+    }
+
+    /**
+     * Loads the environment for the current `VCAP_SERVICES` from a cache file, as with {@link #load(Environment, Path)}. The options are used to parse the JSON if the cache file does not match it; of the other options, only {@linkplain ParsingOptions#cacheCredentialPaths() caching of credential paths} applies to an environment loaded from the file.
+     *
+     * @param environment the underlying environment from which to obtain the environment variables
+     * @param cacheFile   the cache file, which need not exist
+     * @param options     options controlling how the environment variables are parsed
+     * @return the environment
+     * @throws CloudFoundryEnvironmentException if the variable is missing, or the cache file does not match and the JSON is malformed
+     */
+    public static CloudFoundryEnvironment load(Environment environment, Path cacheFile, ParsingOptions options) throws CloudFoundryEnvironmentException {
+        byte[] json = environment.lookup(CloudFoundryEnvironment.VCAP_SERVICES).getBytes(StandardCharsets.UTF_8);
+        byte[] hash = hash(json);
+
+        CloudFoundryEnvironment cached = read(cacheFile, json.length, hash, environment, options);
+        if (cached != null) return cached;
+
+        CloudFoundryEnvironment parsed = CloudFoundryEnvironment.fromJson(json, options);
+        try {
+            write(parsed, json.length, hash, cacheFile);
+        } catch (IOException e) {
+            // the cache is only an optimisation; perhaps the file system is read-only
+        }
+        return CloudFoundryEnvironment.of(new ArrayList<>(parsed.getServices()), environment);
+    }
+
+    /**
+     * Parses a `VCAP_SERVICES` document, and writes it to a cache file, replacing any file already there. This is for writing the file ahead of time, rather than when the application starts.
+     *
+     * @param json      the document
+     * @param cacheFile the cache file
+     * @throws CloudFoundryEnvironmentException if the document is malformed
+     * @throws IOException                      if the file could not be written
+     */
+    public static void write(String json, Path cacheFile) throws CloudFoundryEnvironmentException, IOException {
+        byte[] bytes = json.getBytes(StandardCharsets.UTF_8);
+        write(CloudFoundryEnvironment.fromJson(bytes), bytes.length, hash(bytes), cacheFile);
+    }
+
+    private static byte[] hash(byte[] json) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(json);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("every Java platform must support SHA-256", e);
+        }
+    }
+
+    /**
+     * Reads an environment from a cache file, if it matches the given JSON.
+     *
+     * @return the environment, or null if the file is missing, unreadable, or for some other JSON
+     */
+    private static CloudFoundryEnvironment read(Path cacheFile, long jsonLength, byte[] jsonHash, Environment environment, ParsingOptions options) {
+        ByteBuffer buffer;
+        try (FileChannel channel = FileChannel.open(cacheFile, StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_LENGTH || channel.size() > Integer.MAX_VALUE) return null;
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            return null;
+        }
+
+        try {
+            if (buffer.getLong(0) != MAGIC || buffer.getInt(8) != VERSION || buffer.getInt(12) != buffer.capacity()) return null;
+            if (buffer.getLong(16) != jsonLength) return null;
+            byte[] hash = new byte[HASH_LENGTH];
+            ((ByteBuffer) buffer.duplicate().position(24)).get(hash);
+            if (!Arrays.equals(hash, jsonHash)) return null;
+            if (buffer.getInt(CHECKSUM_OFFSET) != checksum(buffer)) return null;
+            return new Reader(buffer, options).readEnvironment(environment);
+        } catch (RuntimeException e) {
+            // a corrupt file; the JSON will be parsed instead
+            return null;
+        }
+    }
+
+    /**
+     * Works out the checksum of a file: a CRC-32 of all of it, except the checksum itself.
+     */
+    private static int checksum(ByteBuffer file) {
+        CRC32 crc = new CRC32();
+        ByteBuffer part = file.duplicate();
+        part.position(0).limit(CHECKSUM_OFFSET);
+        crc.update(part);
+        part.limit(file.capacity()).position(HEADER_LENGTH);
+        crc.update(part);
+        return (int) crc.getValue();
+    }
+
+    private static final class Reader {
+        private final ByteBuffer buffer;
+        private final ParsingOptions options;
+        private final int stringCount;
+        private final int serviceCount;
+        private final int treesOffset;
+        private final int stringsOffset;
+        private final String[] strings;
+        private int position;
+
+        private Reader(ByteBuffer buffer, ParsingOptions options) {
+            this.buffer = buffer;
+            this.options = options;
+            this.stringCount = buffer.getInt(24 + HASH_LENGTH);
+            this.serviceCount = buffer.getInt(28 + HASH_LENGTH);
+            this.treesOffset = buffer.getInt(32 + HASH_LENGTH);
+            this.stringsOffset = HEADER_LENGTH + (stringCount + 1) * 4;
+            this.strings = new String[stringCount];
+        }
+
+        private Reader(Reader reader, int position) {
+            this.buffer = reader.buffer;
+            this.options = reader.options;
+            this.stringCount = reader.stringCount;
+            this.serviceCount = reader.serviceCount;
+            this.treesOffset = reader.treesOffset;
+            this.stringsOffset = reader.stringsOffset;
+            this.strings = reader.strings;
+            this.position = position;
+        }
+
+        private CloudFoundryEnvironment readEnvironment(Environment environment) {
+            position = buffer.getInt(HEADER_LENGTH + stringCount * 4) + stringsOffset;
+            List<CloudFoundryService> services = new ArrayList<>();
+            for (int i = 0; i < serviceCount; i++) {
+                String name = readString();
+                String label = readString();
+                String plan = readString();
+                int tagCount = readInt();
+                List<String> tags = new ArrayList<>();
+                for (int j = 0; j < tagCount; j++) {
+                    tags.add(readString());
+                }
+                long fingerprint = readLong();
+                int credentialsOffset = treesOffset + readInt();
+                Reader credentialsReader = new Reader(this, credentialsOffset);
+                services.add(new CloudFoundryService(name, label, plan, CompactSet.copyOf(tags), null, credentialsReader::readCredentials, options.isCacheCredentialPaths(), fingerprint));
+            }
+            return CloudFoundryEnvironment.of(services, environment);
+        }
+
+        @SuppressWarnings("unchecked")
+        private Map<String, Object> readCredentials() {
+            return (Map<String, Object>) readValue();
+        }
+
+        private Object readValue() {
+            byte type = buffer.get(position++);
+            switch (type) {
+                case NULL:
+                    return null;
+                case FALSE:
+                    return Boolean.FALSE;
+                case TRUE:
+                    return Boolean.TRUE;
+                case INT:
+                    return readInt();
+                case LONG:
+                    return readLong();
+                case DOUBLE:
+                    double value = buffer.getDouble(position);
+                    position += 8;
+                    return value;
+                case STRING:
+                    return readString();
+                case BIG_INTEGER:
+                    return new BigInteger(readString());
+                case BIG_DECIMAL:
+                    return new BigDecimal(readString());
+                case MAP: {
+                    int size = readInt();
+                    CompactMap.Builder<Object> map = new CompactMap.Builder<>();
+                    for (int i = 0; i < size; i++) {
+                        String key = readString();
+                        map.put(key, readValue());
+                    }
+                    return map.build();
+                }
+                case LIST: {
+                    int size = readInt();
+                    List<Object> list = new ArrayList<>();
+                    for (int i = 0; i < size; i++) {
+                        list.add(readValue());
+                    }
+                    return CompactList.copyOf(list);
+                }
+                default:
+                    throw new IllegalStateException("corrupt cache file: unknown type " + type + " at offset " + (position - 1));
+            }
+        }
+
+        private int readInt() {
+            int value = buffer.getInt(position);
+            position += 4;
+            return value;
+        }
+
+        private long readLong() {
+            long value = buffer.getLong(position);
+            position += 8;
+            return value;
+        }
+
+        /**
+         * Reads a reference to a string, and gets the string, decoding it if this is its first use. Strings are immutable, so they can safely be published through a race; two threads may both decode a string, but that is harmless.
+         */
+        private String readString() {
+            int index = readInt();
+            if (index == NONE) return null;
+            String string = strings[index];
+            if (string == null) {
+                int start = stringsOffset + buffer.getInt(HEADER_LENGTH + index * 4);
+                int end = stringsOffset + buffer.getInt(HEADER_LENGTH + (index + 1) * 4);
+                byte[] bytes = new byte[end - start];
+                ((ByteBuffer) buffer.duplicate().position(start)).get(bytes);
+                string = new String(bytes, StandardCharsets.UTF_8);
+                strings[index] = string;
+            }
+            return string;
+        }
+    }
+
+    private static void write(CloudFoundryEnvironment environment, long jsonLength, byte[] jsonHash, Path cacheFile) throws IOException {
+        Writer writer = new Writer();
+        for (CloudFoundryService service : environment.getServices()) {
+            writer.writeService(service);
+        }
+
+        Path directory = cacheFile.toAbsolutePath().getParent();
+        if (directory != null) Files.createDirectories(directory);
+        Path temporaryFile = Files.createTempFile(directory, cacheFile.getFileName().toString(), ".tmp");
+        try {
+            try (OutputStream out = Files.newOutputStream(temporaryFile)) {
+                writer.writeTo(out, jsonLength, jsonHash);
+            }
+            Files.move(temporaryFile, cacheFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(temporaryFile);
+        }
+    }
+
+    private static final class Writer {
+        private final Map<String, Integer> stringIndex = new HashMap<>();
+        private final ByteArrayOutputStream stringBytes = new ByteArrayOutputStream();
+        private final List<Integer> stringOffsets = new ArrayList<>();
+        private final ByteArrayOutputStream recordBytes = new ByteArrayOutputStream();
+        private final DataOutputStream records = new DataOutputStream(recordBytes);
+        private final ByteArrayOutputStream treeBytes = new ByteArrayOutputStream();
+        private final DataOutputStream trees = new DataOutputStream(treeBytes);
+        private int serviceCount;
+
+        private void writeService(CloudFoundryService service) throws IOException {
+            records.writeInt(stringRef(service.getName()));
+            records.writeInt(stringRef(service.getLabel()));
+            records.writeInt(stringRef(service.getPlan()));
+            Set<String> tags = service.getTags();
+            records.writeInt(tags.size());
+            for (String tag : tags) {
+                records.writeInt(stringRef(tag));
+            }
+            records.writeLong(service.getFingerprint());
+            records.writeInt(trees.size());
+            writeValue(service.getCredentials());
+            ++serviceCount;
+        }
+
+        private void writeValue(Object value) throws IOException {
+            if (value == null) {
+                trees.writeByte(NULL);
+            } else if (value instanceof Boolean) {
+                trees.writeByte((Boolean) value ? TRUE : FALSE);
+            } else if (value instanceof Integer) {
+                trees.writeByte(INT);
+                trees.writeInt((Integer) value);
+            } else if (value instanceof Long) {
+                trees.writeByte(LONG);
+                trees.writeLong((Long) value);
+            } else if (value instanceof Double || value instanceof Float) {
+                trees.writeByte(DOUBLE);
+                trees.writeDouble(((Number) value).doubleValue());
+            } else if (value instanceof String) {
+                trees.writeByte(STRING);
+                trees.writeInt(stringRef((String) value));
+            } else if (value instanceof BigInteger) {
+                trees.writeByte(BIG_INTEGER);
+                trees.writeInt(stringRef(value.toString()));
+            } else if (value instanceof BigDecimal) {
+                trees.writeByte(BIG_DECIMAL);
+                trees.writeInt(stringRef(value.toString()));
+            } else if (value instanceof Map) {
+                Map<?, ?> map = (Map<?, ?>) value;
+                trees.writeByte(MAP);
+                trees.writeInt(map.size());
+                for (Map.Entry<?, ?> entry : map.entrySet()) {
+                    trees.writeInt(stringRef((String) entry.getKey()));
+                    writeValue(entry.getValue());
+                }
+            } else if (value instanceof List) {
+                List<?> list = (List<?>) value;
+                trees.writeByte(LIST);
+                trees.writeInt(list.size());
+                for (Object element : list) {
+                    writeValue(element);
+                }
+            } else {
+                throw new IllegalArgumentException("cannot cache a credential of " + value.getClass());
+            }
+        }
+
+        private int stringRef(String string) {
+            if (string == null) return NONE;
+            Integer index = stringIndex.get(string);
+            if (index == null) {
+                index = stringOffsets.size();
+                stringIndex.put(string, index);
+                stringOffsets.add(stringBytes.size());
+                byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+                stringBytes.write(bytes, 0, bytes.length);
+            }
+            return index;
+        }
+
+        private void writeTo(OutputStream stream, long jsonLength, byte[] jsonHash) throws IOException {
+            int stringCount = stringOffsets.size();
+            int stringsOffset = HEADER_LENGTH + (stringCount + 1) * 4;
+            int recordsOffset = stringsOffset + stringBytes.size();
+            int treesOffset = recordsOffset + recordBytes.size();
+            int length = treesOffset + treeBytes.size();
+
+            ByteArrayOutputStream file = new ByteArrayOutputStream(length);
+            DataOutputStream out = new DataOutputStream(file);
+            out.writeLong(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(length);
+            out.writeLong(jsonLength);
+            out.write(jsonHash);
+            out.writeInt(stringCount);
+            out.writeInt(serviceCount);
+            out.writeInt(treesOffset);
+            out.writeInt(0); // the checksum, filled in below
+            for (int offset : stringOffsets) {
+                out.writeInt(offset);
+            }
+            // the table has an extra entry, marking the end of the last string, and so the start of the records
+            out.writeInt(stringBytes.size());
+            stringBytes.writeTo(out);
+            recordBytes.writeTo(out);
+            treeBytes.writeTo(out);
+            out.flush();
+
+            ByteBuffer bytes = ByteBuffer.wrap(file.toByteArray());
+            bytes.putInt(CHECKSUM_OFFSET, checksum(bytes));
+            stream.write(bytes.array());
+        }
+    }
+
+}
@@ -0,0 +1,172 @@
+package io.pivotal.labs.cfenv;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * The differences between two environments, at the level of services: which services were added, which were removed, and which changed. For example, to react to rotated database credentials:
+ *
+ * ----
+ * EnvironmentDiff diff = EnvironmentDiff.between(oldEnvironment, newEnvironment);
+ * for (CloudFoundryService service : diff.getChanged()) {
+ *     if (diff.getChangedCredentialPaths(service.getName()).contains(CredentialPath.of("password"))) reconnect(service);
+ * }
+ * ----
+ *
+ * Services are matched by name, and are compared by their {@linkplain CloudFoundryService#getFingerprint() fingerprints}, which are worked out when an environment is parsed, so a diff takes time in proportion to the number of services, not to the size of their credentials. Changed credentials are only examined if they are asked for, and then only as far as needed: nested maps have fingerprints too, so a map which has not changed is not looked into.
+ */
+public final class EnvironmentDiff {
+
+    private final CloudFoundryEnvironment before;
+    private final CloudFoundryEnvironment after;
+    private final List<CloudFoundryService> added;
+    private final List<CloudFoundryService> removed;
+    private final List<CloudFoundryService> changed;
+
+    private EnvironmentDiff(CloudFoundryEnvironment before, CloudFoundryEnvironment after, List<CloudFoundryService> added, List<CloudFoundryService> removed, List<CloudFoundryService> changed) {
+        this.before = before;
+        this.after = after;
+        this.added = added;
+        this.removed = removed;
+        this.changed = changed;
+    }
+
+    /**
+     * Works out the differences between two environments.
+     *
+     * @param before the older environment
+     * @param after  the newer environment
+     * @return the differences
+     */
+    public static EnvironmentDiff between(CloudFoundryEnvironment before, CloudFoundryEnvironment after) {
+        Objects.requireNonNull(before, "before");
+        Objects.requireNonNull(after, "after");
+        List<CloudFoundryService> added = new ArrayList<>();
+        List<CloudFoundryService> removed = new ArrayList<>();
+        List<CloudFoundryService> changed = new ArrayList<>();
+
+        if (before != after) {
+            for (CloudFoundryService service : after.getServices()) {
+                CloudFoundryService previous = before.getServiceOrDefault(service.getName(), null);
+                if (previous == null) {
+                    added.add(service);
+                } else if (previous != service && previous.getFingerprint() != service.getFingerprint()) {
+                    changed.add(service);
+                }
+            }
+            for (CloudFoundryService service : before.getServices()) {
+                if (after.getServiceOrDefault(service.getName(), null) == null) removed.add(service);
+            }
+        }
+
+        return new EnvironmentDiff(before, after, CompactList.copyOf(added), CompactList.copyOf(removed), CompactList.copyOf(changed));
+    }
+
+    public CloudFoundryEnvironment getBefore() {
+        return before;
+    }
+
+    public CloudFoundryEnvironment getAfter() {
+        return after;
+    }
+
+    /**
+     * Gets the services which are in the newer environment, but not the older one.
+     *
+     * @return the services, in the order in which they appear in the newer environment
+     */
+    public List<CloudFoundryService> getAdded() {
+        return added;
+    }
+
+    /**
+     * Gets the services which were in the older environment, but are not in the newer one.
+     *
+     * @return the services, as they were in the older environment, in the order in which they appear there
+     */
+    public List<CloudFoundryService> getRemoved() {
+        return removed;
+    }
+
+    /**
+     * Gets the services which are in both environments, but whose metadata or credentials are different.
+     *
+     * @return the services, as they are in the newer environment, in the order in which they appear there
+     */
+    public List<CloudFoundryService> getChanged() {
+        return changed;
+    }
+
+    /**
+     * Tells whether the environments have the same services, with the same contents.
+     *
+     * @return true if no service was added, removed, or changed
+     */
+    public boolean isEmpty() {
+        return added.isEmpty() && removed.isEmpty() && changed.isEmpty();
+    }
+
+    /**
+     * Gets the paths to the credentials of a changed service which were added, removed, or changed. A path leads to the outermost credential which differs: if a nested map was added, its path is given, rather than those of its entries, and lists are compared as a whole. Paths to credentials in the newer environment come first, in its order, followed by those which were removed.
+     *
+     * @param serviceName the name of the service
+     * @return the paths, as an immutable list, which is empty if the service did not change, or only its metadata did
+     * @throws java.util.NoSuchElementException if the service is not in both environments
+     */
+    public List<CredentialPath> getChangedCredentialPaths(String serviceName) {
+        CloudFoundryService previous = before.getService(serviceName);
+        CloudFoundryService current = after.getService(serviceName);
+        if (previous == current || previous.getFingerprint() == current.getFingerprint()) return Collections.emptyList();
+
+        List<CredentialPath> paths = new ArrayList<>();
+        compare(previous.getCredentials(), current.getCredentials(), new ArrayList<>(), paths);
+        return CompactList.copyOf(paths);
+    }
+
+    private static void compare(Map<?, ?> before, Map<?, ?> after, List<String> prefix, List<CredentialPath> paths) {
+        for (Map.Entry<?, ?> entry : after.entrySet()) {
+            String key = (String) entry.getKey();
+            prefix.add(key);
+            Object value = entry.getValue();
+            if (!before.containsKey(key)) {
+                paths.add(pathOf(prefix));
+            } else {
+                Object previous = before.get(key);
+                if (previous instanceof Map && value instanceof Map) {
+                    if (Fingerprint.of(previous) != Fingerprint.of(value)) compare((Map<?, ?>) previous, (Map<?, ?>) value, prefix, paths);
+                } else if (Fingerprint.of(previous) != Fingerprint.of(value)) {
+                    paths.add(pathOf(prefix));
+                }
+            }
+            prefix.remove(prefix.size() - 1);
+        }
+        for (Object key : before.keySet()) {
+            if (!after.containsKey(key)) {
+                prefix.add((String) key);
+                paths.add(pathOf(prefix));
+                prefix.remove(prefix.size() - 1);
+            }
+        }
+    }
+
+    private static CredentialPath pathOf(List<String> keys) {
+        return CredentialPath.of(keys.toArray(new String[keys.size()]));
+    }
+
+    @Override
+    public String toString() {
+        return "added " + namesOf(added) + ", removed " + namesOf(removed) + ", changed " + namesOf(changed);
+    }
+
+    private static List<String> namesOf(List<CloudFoundryService> services) {
+        List<String> names = new ArrayList<>(services.size());
+        for (CloudFoundryService service : services) {
+            names.add(service.getName());
+        }
+        return names;
+    }
+
+}
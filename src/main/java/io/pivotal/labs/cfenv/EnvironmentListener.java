@@ -0,0 +1,16 @@
+package io.pivotal.labs.cfenv;
+
+/**
+ * A listener for changes to an environment, such as those made when a {@link ReloadingEnvironment} reads a changed file.
+ */
+@FunctionalInterface
+public interface EnvironmentListener {
+
+    /**
+     * Called when the environment has changed. This is called after the new environment has been published, so it is what a holder will now give out; it is only called if some service was added, removed, or changed.
+     *
+     * @param diff the differences between the old environment and the new one
+     */
+    public void environmentChanged(EnvironmentDiff diff);
+
+}
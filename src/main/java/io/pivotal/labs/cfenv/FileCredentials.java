@@ -0,0 +1,121 @@
+package io.pivotal.labs.cfenv;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * An immutable map of credentials, each held in a file of its own, as in a {@link ServiceBindingDirectory}. The keys are known from the start, but each file is only read the first time its value is asked for, and the value is then kept; asking whether a key is present, or for the set of keys, reads nothing. Iterating over the entries reads each file as its entry is reached.
+ *
+ * Files are read whole through a {@link FileChannel}, and decoded as UTF-8. If two threads ask for a value at once, both may read the file, but only one value is kept.
+ */
+final class FileCredentials extends AbstractMap<String, Object> {
+
+    private final String[] keys;
+    private final Path[] files;
+    private final int[] slots;
+    private final AtomicReferenceArray<String> values;
+
+    /**
+     * @param keys  the keys, in the order in which they should be iterated
+     * @param files the file holding each key's value
+     */
+    FileCredentials(String[] keys, Path[] files) {
+        this.keys = keys;
+        this.files = files;
+        this.slots = KeyIndex.build(keys, keys.length);
+        this.values = new AtomicReferenceArray<>(keys.length);
+    }
+
+    private String valueAt(int index) {
+        String value = values.get(index);
+        if (value == null) {
+            values.compareAndSet(index, null, read(files[index]));
+            value = values.get(index);
+        }
+        return value;
+    }
+
+    private static String read(Path file) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            if (size > Integer.MAX_VALUE) throw new IOException("credential file is too large: " + file);
+            ByteBuffer buffer = ByteBuffer.allocate((int) size);
+            while (buffer.hasRemaining() && channel.read(buffer) >= 0) {
+                // keep reading until the buffer is full or the file ends
+            }
+            buffer.flip();
+            return StandardCharsets.UTF_8.decode(buffer).toString();
+        } catch (IOException e) {
+            throw new UncheckedIOException("error reading credential from " + file, e);
+        }
+    }
+
+    @Override
+    public int size() {
+        return keys.length;
+    }
+
+    @Override
+    public boolean containsKey(Object key) {
+        return KeyIndex.find(keys, keys.length, slots, key) >= 0;
+    }
+
+    @Override
+    public Object get(Object key) {
+        int index = KeyIndex.find(keys, keys.length, slots, key);
+        return index >= 0 ? valueAt(index) : null;
+    }
+
+    @Override
+    public Object getOrDefault(Object key, Object defaultValue) {
+        int index = KeyIndex.find(keys, keys.length, slots, key);
+        return index >= 0 ? valueAt(index) : defaultValue;
+    }
+
+    @Override
+    public Set<String> keySet() {
+        return new CompactSet(keys, keys.length, slots);
+    }
+
+    @Override
+    public Set<Entry<String, Object>> entrySet() {
+        return new AbstractSet<Entry<String, Object>>() {
+            @Override
+            public Iterator<Entry<String, Object>> iterator() {
+                return new Iterator<Entry<String, Object>>() {
+                    private int index;
+
+                    @Override
+                    public boolean hasNext() {
+                        return index < keys.length;
+                    }
+
+                    @Override
+                    public Entry<String, Object> next() {
+                        if (index >= keys.length) throw new NoSuchElementException();
+                        Entry<String, Object> entry = new SimpleImmutableEntry<>(keys[index], valueAt(index));
+                        ++index;
+                        return entry;
+                    }
+                };
+            }
+
+            @Override
+            public int size() {
+                return keys.length;
+            }
+        };
+    }
+
+}
@@ -0,0 +1,86 @@
+package io.pivotal.labs.cfenv;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * 64-bit fingerprints of parsed JSON values, used to tell whether services have changed without comparing them in depth. Equal values have equal fingerprints, including maps and sets in different orders; different values have different fingerprints, except with a probability which is negligible for values which are not chosen to collide.
+ *
+ * Strings are hashed character by character, with FNV-1a, rather than by {@link String#hashCode()}, whose 32 bits are too few, and too easily made to collide. Every hash is then mixed with the SplitMix64 finalizer, so that sums and products of hashes stay well distributed.
+ */
+final class Fingerprint {
+
+    private static final long NULL = 0x6a09e667f3bcc908L;
+    private static final long TRUE = 0xbb67ae8584caa73bL;
+    private static final long FALSE = 0x3c6ef372fe94f82bL;
+    private static final long INTEGER = 0xa54ff53a5f1d36f1L;
+    private static final long FLOAT = 0x510e527fade682d1L;
+    private static final long MAP = 0x9b05688c2b3e6c1fL;
+    private static final long LIST = 0x1f83d9abfb41bd6bL;
+    private static final long SET = 0x5be0cd19137e2179L;
+
+    private Fingerprint() {}
+
+    static long of(Object value) {
+        if (value == null) return NULL;
+        if (value instanceof String) return of((String) value);
+        if (value instanceof Boolean) return (Boolean) value ? TRUE : FALSE;
+        if (value instanceof Integer || value instanceof Long) return mix(INTEGER ^ ((Number) value).longValue());
+        if (value instanceof BigInteger || value instanceof BigDecimal) return mix(INTEGER ^ of(value.toString()));
+        if (value instanceof Number) return mix(FLOAT ^ Double.doubleToLongBits(((Number) value).doubleValue()));
+        if (value instanceof CompactMap) return ((CompactMap<?>) value).fingerprint();
+        if (value instanceof Map) return ofMap((Map<?, ?>) value);
+        if (value instanceof Set) return ofSet((Set<?>) value);
+        if (value instanceof List) return ofList((List<?>) value);
+        if (value instanceof Collection) return ofList((Collection<?>) value);
+        return mix(value.hashCode());
+    }
+
+    static long of(String string) {
+        if (string == null) return NULL;
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < string.length(); i++) {
+            hash ^= string.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return mix(hash ^ string.length());
+    }
+
+    /**
+     * Fingerprints a map, independently of the order of its entries.
+     */
+    static long ofMap(Map<?, ?> map) {
+        long hash = MAP;
+        for (Map.Entry<?, ?> entry : map.entrySet()) {
+            hash += mix(of(entry.getKey()) * 31 + of(entry.getValue()));
+        }
+        return mix(hash ^ map.size());
+    }
+
+    static long ofSet(Set<?> set) {
+        long hash = SET;
+        for (Object element : set) {
+            hash += of(element);
+        }
+        return mix(hash ^ set.size());
+    }
+
+    private static long ofList(Collection<?> list) {
+        long hash = LIST;
+        for (Object element : list) {
+            hash = hash * 31 + of(element);
+        }
+        return mix(hash ^ list.size());
+    }
+
+    static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+
+}
@@ -0,0 +1,125 @@
+package io.pivotal.labs.cfenv;
+
+import java.io.IOException;
+
+/**
+ * A {@link JsonTokenizer} which checks each token against some {@link ParsingLimits}, failing as soon as one is exceeded.
+ */
+class GuardedTokenizer implements JsonTokenizer {
+
+    private final JsonTokenizer tokenizer;
+    private final ParsingLimits limits;
+    private int depth;
+    private int credentialEntries = -1;
+
+    /**
+     * @param depth the depth in the whole document of the start of the part which the tokenizer reads
+     */
+    GuardedTokenizer(JsonTokenizer tokenizer, ParsingLimits limits, int depth) {
+        this.tokenizer = tokenizer;
+        this.limits = limits;
+        this.depth = depth;
+    }
+
+    /**
+     * Starts counting values against the limit on credential entries.
+     */
+    void beginCredentials() {
+        credentialEntries = 0;
+    }
+
+    void endCredentials() {
+        credentialEntries = -1;
+    }
+
+    @Override
+    public Token next() throws IOException {
+        Token token = tokenizer.next();
+        if (token == null) return null;
+        switch (token) {
+            case START_OBJECT:
+            case START_ARRAY:
+                if (++depth > limits.getMaxDepth()) throw error("nested more deeply than the limit of " + limits.getMaxDepth());
+                countCredentialEntry();
+                break;
+            case END_OBJECT:
+            case END_ARRAY:
+                --depth;
+                break;
+            case FIELD_NAME:
+                checkStringLength();
+                break;
+            case STRING:
+                checkStringLength();
+                countCredentialEntry();
+                break;
+            default:
+                countCredentialEntry();
+        }
+        return token;
+    }
+
+    private void checkStringLength() throws IOException {
+        if (tokenizer.textLength() > limits.getMaxStringLength()) throw error("string longer than the limit of " + limits.getMaxStringLength());
+    }
+
+    private void countCredentialEntry() throws IOException {
+        if (credentialEntries >= 0 && ++credentialEntries > limits.getMaxCredentialEntries()) {
+            throw error("more credential entries than the limit of " + limits.getMaxCredentialEntries());
+        }
+    }
+
+    @Override
+    public Token current() {
+        return tokenizer.current();
+    }
+
+    @Override
+    public String text() throws IOException {
+        return tokenizer.text();
+    }
+
+    @Override
+    public int textLength() throws IOException {
+        return tokenizer.textLength();
+    }
+
+    @Override
+    public Number number() throws IOException {
+        return tokenizer.number();
+    }
+
+    /**
+     * Skips token by token, rather than delegating, so that the skipped tokens are checked too.
+     */
+    @Override
+    public void skipChildren() throws IOException {
+        Token current = tokenizer.current();
+        if (current != Token.START_OBJECT && current != Token.START_ARRAY) return;
+        int target = depth - 1;
+        while (depth > target) {
+            if (next() == null) throw error("unexpected end of input");
+        }
+    }
+
+    @Override
+    public long tokenOffset() {
+        return tokenizer.tokenOffset();
+    }
+
+    @Override
+    public long offset() {
+        return tokenizer.offset();
+    }
+
+    @Override
+    public IOException error(String message) {
+        return tokenizer.error(message);
+    }
+
+    @Override
+    public void close() throws IOException {
+        tokenizer.close();
+    }
+
+}
@@ -0,0 +1,163 @@
+package io.pivotal.labs.cfenv;
+
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonLocation;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.core.JsonToken;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A {@link JsonTokenizer} backed by Jackson's streaming parser. This is the only class which refers to Jackson, so Jackson is only loaded if this backend is used.
+ */
+class JacksonTokenizer implements JsonTokenizer {
+
+    private static final JsonFactory JSON_FACTORY = new JsonFactory();
+
+    private final JsonParser parser;
+
+    private JacksonTokenizer(JsonParser parser) {
+        this.parser = parser;
+    }
+
+    static JacksonTokenizer open(String json) throws IOException {
+        return new JacksonTokenizer(JSON_FACTORY.createParser(json));
+    }
+
+    /**
+     * Opens a tokenizer over part of a string. The part is read through a reader, a block at a time, rather than being copied out as a substring. Offsets are relative to the start of the part.
+     */
+    static JacksonTokenizer open(String json, int start, int end) throws IOException {
+        if (start == 0 && end == json.length()) return open(json);
+        return new JacksonTokenizer(JSON_FACTORY.createParser(new StringRangeReader(json, start, end)));
+    }
+
+    /**
+     * Opens a tokenizer over a buffer. Heap buffers are parsed in place; others are read through a stream, a block at a time, so that direct and memory-mapped buffers are not copied wholesale onto the heap. Offsets are relative to the buffer's position, so callers should pass a buffer whose position is zero.
+     */
+    static JacksonTokenizer open(ByteBuffer json) throws IOException {
+        if (json.hasArray()) {
+            return new JacksonTokenizer(JSON_FACTORY.createParser(json.array(), json.arrayOffset() + json.position(), json.remaining()));
+        } else {
+            return new JacksonTokenizer(JSON_FACTORY.createParser(new ByteBufferInputStream(json)));
+        }
+    }
+
+    @Override
+    public Token next() throws IOException {
+        try {
+            parser.nextToken();
+        } catch (JsonProcessingException e) {
+            throw translate(e);
+        }
+        return current();
+    }
+
+    @Override
+    public Token current() {
+        JsonToken token = parser.getCurrentToken();
+        if (token == null) return null;
+        switch (token) {
+            case START_OBJECT:
+                return Token.START_OBJECT;
+            case END_OBJECT:
+                return Token.END_OBJECT;
+            case START_ARRAY:
+                return Token.START_ARRAY;
+            case END_ARRAY:
+                return Token.END_ARRAY;
+            case FIELD_NAME:
+                return Token.FIELD_NAME;
+            case VALUE_STRING:
+                return Token.STRING;
+            case VALUE_NUMBER_INT:
+                return Token.INTEGER;
+            case VALUE_NUMBER_FLOAT:
+                return Token.FLOAT;
+            case VALUE_TRUE:
+                return Token.TRUE;
+            case VALUE_FALSE:
+                return Token.FALSE;
+            case VALUE_NULL:
+                return Token.NULL;
+            default:
+                throw new IllegalStateException("unexpected token: " + token);
+        }
+    }
+
+    @Override
+    public String text() throws IOException {
+        try {
+            return parser.getCurrentToken() == JsonToken.FIELD_NAME ? parser.getCurrentName() : parser.getText();
+        } catch (JsonProcessingException e) {
+            throw translate(e);
+        }
+    }
+
+    @Override
+    public int textLength() throws IOException {
+        try {
+            return parser.getTextLength();
+        } catch (JsonProcessingException e) {
+            throw translate(e);
+        }
+    }
+
+    @Override
+    public Number number() throws IOException {
+        try {
+            return parser.getCurrentToken() == JsonToken.VALUE_NUMBER_FLOAT ? parser.getDoubleValue() : parser.getNumberValue();
+        } catch (JsonProcessingException e) {
+            throw translate(e);
+        }
+    }
+
+    @Override
+    public void skipChildren() throws IOException {
+        try {
+            parser.skipChildren();
+        } catch (JsonProcessingException e) {
+            throw translate(e);
+        }
+    }
+
+    /**
+     * Jackson's messages include the text of the document being parsed, which could be large, and could contain secrets, so we replace them with messages which just give the position.
+     */
+    private MalformedJsonException translate(JsonProcessingException e) {
+        JsonLocation location = e.getLocation() != null ? e.getLocation() : parser.getCurrentLocation();
+        return new MalformedJsonException(e.getOriginalMessage(), offsetOf(location), location.getLineNr(), location.getColumnNr());
+    }
+
+    @Override
+    public long tokenOffset() {
+        return offsetOf(parser.getTokenLocation());
+    }
+
+    @Override
+    public long offset() {
+        return offsetOf(parser.getCurrentLocation());
+    }
+
+    /**
+     * Jackson counts characters when parsing characters, and bytes when parsing bytes, and reports -1 for the other.
+     */
+    private static long offsetOf(JsonLocation location) {
+        long charOffset = location.getCharOffset();
+        return charOffset >= 0 ? charOffset : location.getByteOffset();
+    }
+
+    @Override
+    public IOException error(String message) {
+        JsonLocation location = parser.getCurrentLocation();
+        return new MalformedJsonException(message, offsetOf(location), location.getLineNr(), location.getColumnNr());
+    }
+
+    @Override
+    public void close() throws IOException {
+        parser.close();
+    }
+
+}
@@ -0,0 +1,70 @@
+package io.pivotal.labs.cfenv;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * The JSON parsers which can be used to parse `VCAP_SERVICES`.
+ */
+public enum JsonBackend {
+
+    /**
+     * Jackson's streaming parser. This needs `jackson-core` on the classpath.
+     */
+    JACKSON {
+        @Override
+        JsonTokenizer open(String json, int start, int end) throws IOException {
+            return JacksonTokenizer.open(json, start, end);
+        }
+
+        @Override
+        JsonTokenizer open(ByteBuffer json) throws IOException {
+            return JacksonTokenizer.open(json);
+        }
+    },
+
+    /**
+     * A small parser built into this library, which needs no other libraries and uses no reflection. It is quicker to load than Jackson, which makes a difference to the startup time of small applications.
+     */
+    BUILT_IN {
+        @Override
+        JsonTokenizer open(String json, int start, int end) {
+            return new JsonReader(json, start, end);
+        }
+
+        @Override
+        JsonTokenizer open(ByteBuffer json) {
+            return new JsonReader(json);
+        }
+    };
+
+    private static final String JACKSON_CLASS_NAME = "com.fasterxml.jackson.core.JsonFactory";
+
+    /**
+     * Opens a tokenizer over part of a string. Offsets reported by the tokenizer are relative to the start of that part.
+     */
+    abstract JsonTokenizer open(String json, int start, int end) throws IOException;
+
+    /**
+     * Opens a tokenizer over the remaining bytes of a buffer, which must be UTF-8. Offsets reported by the tokenizer are positions in the buffer.
+     */
+    abstract JsonTokenizer open(ByteBuffer json) throws IOException;
+
+    /**
+     * Gets the backend used by default: Jackson if it is on the classpath, otherwise the built-in parser.
+     *
+     * @return the default backend
+     */
+    public static JsonBackend getDefault() {
+        return DefaultHolder.DEFAULT;
+    }
+
+    private static class DefaultHolder {
+        private static final JsonBackend DEFAULT = isJacksonAvailable() ? JACKSON : BUILT_IN;
+
+        private static boolean isJacksonAvailable() {
+            return JsonBackend.class.getClassLoader().getResource(JACKSON_CLASS_NAME.replace('.', '/') + ".class") != null;
+        }
+    }
+
+}
@@ -0,0 +1,366 @@
+package io.pivotal.labs.cfenv;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * A small, self-contained JSON pull parser. It needs no libraries and uses no reflection, so it is cheap to load; it is used instead of Jackson when Jackson is not available, or when {@linkplain ParsingOptions#jsonBackend(JsonBackend) asked for}.
+ *
+ * It reads either characters or UTF-8 bytes. All of the structural characters in JSON are ASCII, and no byte of a multi-byte UTF-8 sequence is, so bytes can be scanned just like characters, and only need decoding when the text of a string is asked for. Strings and numbers are only decoded when their value is asked for, so skipping over a subtree allocates nothing.
+ */
+class JsonReader implements JsonTokenizer {
+
+    private static final byte OBJECT = 1;
+    private static final byte ARRAY = 2;
+    private static final byte NOT_EMPTY = 4;
+
+    private final CharSequence chars;
+    private final ByteBuffer bytes;
+    private final int start;
+    private final int end;
+    private int position;
+
+    private byte[] stack = new byte[16];
+    private int depth;
+
+    private Token current;
+    private int tokenStart;
+    private int valueStart;
+    private int valueEnd;
+    private boolean escaped;
+
+    JsonReader(CharSequence input) {
+        this(input, 0, input.length());
+    }
+
+    JsonReader(CharSequence input, int start, int end) {
+        this.chars = input;
+        this.bytes = null;
+        this.start = start;
+        this.position = start;
+        this.end = end;
+    }
+
+    JsonReader(ByteBuffer input) {
+        this.chars = null;
+        this.bytes = input;
+        this.start = input.position();
+        this.position = start;
+        this.end = input.limit();
+    }
+
+    private int at(int index) {
+        return chars != null ? chars.charAt(index) : bytes.get(index) & 0xff;
+    }
+
+    private CharSequence rawText(int start, int end) {
+        if (chars != null) return chars.subSequence(start, end);
+        ByteBuffer range = bytes.duplicate();
+        range.position(start);
+        range.limit(end);
+        return StandardCharsets.UTF_8.decode(range);
+    }
+
+    @Override
+    public Token next() throws IOException {
+        if (current == Token.FIELD_NAME) {
+            skipWhitespace();
+            expect(':');
+            skipWhitespace();
+            return current = readValue();
+        }
+
+        skipWhitespace();
+        if (depth == 0) {
+            return current = position == end ? null : readValue();
+        }
+
+        byte context = stack[depth - 1];
+        char closer = (context & OBJECT) != 0 ? '}' : ']';
+        if (position < end && at(position) == closer) {
+            tokenStart = position++;
+            --depth;
+            return current = closer == '}' ? Token.END_OBJECT : Token.END_ARRAY;
+        }
+        if ((context & NOT_EMPTY) != 0) {
+            expect(',');
+            skipWhitespace();
+        } else {
+            stack[depth - 1] |= NOT_EMPTY;
+        }
+
+        if ((context & OBJECT) != 0) {
+            if (peek() != '"') throw error("expected a field name");
+            tokenStart = position;
+            readString();
+            return current = Token.FIELD_NAME;
+        } else {
+            return current = readValue();
+        }
+    }
+
+    private Token readValue() throws IOException {
+        tokenStart = position;
+        int c = peek();
+        switch (c) {
+            case '{':
+                ++position;
+                push(OBJECT);
+                return Token.START_OBJECT;
+            case '[':
+                ++position;
+                push(ARRAY);
+                return Token.START_ARRAY;
+            case '"':
+                readString();
+                return Token.STRING;
+            case 't':
+                readLiteral("true");
+                return Token.TRUE;
+            case 'f':
+                readLiteral("false");
+                return Token.FALSE;
+            case 'n':
+                readLiteral("null");
+                return Token.NULL;
+            default:
+                if (c == '-' || (c >= '0' && c <= '9')) return readNumber();
+                throw error(c == -1 ? "unexpected end of input" : "unexpected character '" + (char) c + "'");
+        }
+    }
+
+    private void push(byte context) throws IOException {
+        if (depth == stack.length) {
+            byte[] newStack = new byte[stack.length * 2];
+            System.arraycopy(stack, 0, newStack, 0, depth);
+            stack = newStack;
+        }
+        stack[depth++] = context;
+    }
+
+    private void readString() throws IOException {
+        ++position;
+        valueStart = position;
+        escaped = false;
+        while (true) {
+            if (position >= end) throw error("unterminated string");
+            int c = at(position);
+            if (c == '"') break;
+            if (c < 0x20) throw error("unescaped control character in string");
+            if (c == '\\') {
+                escaped = true;
+                readEscape();
+            } else {
+                ++position;
+            }
+        }
+        valueEnd = position++;
+    }
+
+    /**
+     * Checks an escape sequence while scanning, so that a string which is skipped, and never decoded, is still known to be well-formed.
+     */
+    private void readEscape() throws IOException {
+        ++position;
+        if (position >= end) throw error("unterminated string");
+        int c = at(position++);
+        switch (c) {
+            case 'b':
+            case 'f':
+            case 'n':
+            case 'r':
+            case 't':
+            case '"':
+            case '\\':
+            case '/':
+                return;
+            case 'u':
+                for (int j = 0; j < 4; j++) {
+                    if (position >= end) throw error("truncated unicode escape");
+                    if (Character.digit(at(position++), 16) < 0) throw error("bad unicode escape");
+                }
+                return;
+            default:
+                throw error("bad escape character '" + (char) c + "'");
+        }
+    }
+
+    private void readLiteral(String literal) throws IOException {
+        for (int i = 0; i < literal.length(); i++) {
+            if (peek() != literal.charAt(i)) throw error("expected " + literal);
+            ++position;
+        }
+    }
+
+    private Token readNumber() throws IOException {
+        valueStart = position;
+        boolean integral = true;
+        if (peek() == '-') ++position;
+        if (peek() == '0') {
+            ++position;
+        } else {
+            digits();
+        }
+        if (peek() == '.') {
+            ++position;
+            digits();
+            integral = false;
+        }
+        if (peek() == 'e' || peek() == 'E') {
+            ++position;
+            if (peek() == '+' || peek() == '-') ++position;
+            digits();
+            integral = false;
+        }
+        valueEnd = position;
+        return integral ? Token.INTEGER : Token.FLOAT;
+    }
+
+    private void digits() throws IOException {
+        int start = position;
+        while (position < end && isDigit(at(position))) ++position;
+        if (position == start) throw error("expected a digit");
+    }
+
+    private static boolean isDigit(int c) {
+        return c >= '0' && c <= '9';
+    }
+
+    private void skipWhitespace() {
+        while (position < end) {
+            int c = at(position);
+            if (c != ' ' && c != '\n' && c != '\r' && c != '\t') break;
+            ++position;
+        }
+    }
+
+    private int peek() {
+        return position < end ? at(position) : -1;
+    }
+
+    private void expect(char expected) throws IOException {
+        if (peek() != expected) throw error("expected '" + expected + "'");
+        ++position;
+    }
+
+    @Override
+    public Token current() {
+        return current;
+    }
+
+    @Override
+    public String text() throws IOException {
+        if (current != Token.STRING && current != Token.FIELD_NAME) throw error("not a string: " + current);
+        CharSequence raw = rawText(valueStart, valueEnd);
+        if (!escaped) return raw.toString();
+
+        int length = raw.length();
+        StringBuilder buffer = new StringBuilder(length);
+        for (int i = 0; i < length; i++) {
+            char c = raw.charAt(i);
+            if (c != '\\') {
+                buffer.append(c);
+                continue;
+            }
+            c = raw.charAt(++i);
+            switch (c) {
+                case 'b':
+                    buffer.append('\b');
+                    break;
+                case 'f':
+                    buffer.append('\f');
+                    break;
+                case 'n':
+                    buffer.append('\n');
+                    break;
+                case 'r':
+                    buffer.append('\r');
+                    break;
+                case 't':
+                    buffer.append('\t');
+                    break;
+                case 'u':
+                    if (i + 4 >= length) throw error("truncated unicode escape");
+                    int codeUnit = 0;
+                    for (int j = 0; j < 4; j++) {
+                        int digit = Character.digit(raw.charAt(++i), 16);
+                        if (digit < 0) throw error("bad unicode escape");
+                        codeUnit = codeUnit * 16 + digit;
+                    }
+                    buffer.append((char) codeUnit);
+                    break;
+                case '"':
+                case '\\':
+                case '/':
+                    buffer.append(c);
+                    break;
+                default:
+                    throw error("bad escape character '" + c + "'");
+            }
+        }
+        return buffer.toString();
+    }
+
+    @Override
+    public int textLength() throws IOException {
+        if (current != Token.STRING && current != Token.FIELD_NAME) throw error("not a string: " + current);
+        return valueEnd - valueStart;
+    }
+
+    @Override
+    public Number number() throws IOException {
+        String text = rawText(valueStart, valueEnd).toString();
+        if (current == Token.FLOAT) return Double.parseDouble(text);
+        if (current != Token.INTEGER) throw error("not a number: " + current);
+
+        int digits = text.length() - (text.charAt(0) == '-' ? 1 : 0);
+        if (digits <= 9) return Integer.parseInt(text);
+        if (digits <= 18) {
+            long value = Long.parseLong(text);
+            if (value >= Integer.MIN_VALUE && value <= Integer.MAX_VALUE) return (int) value;
+            return value;
+        }
+        BigInteger value = new BigInteger(text);
+        return value.bitLength() < 64 ? (Number) value.longValue() : value;
+    }
+
+    @Override
+    public void skipChildren() throws IOException {
+        if (current != Token.START_OBJECT && current != Token.START_ARRAY) return;
+        int target = depth - 1;
+        while (depth > target) {
+            if (next() == null) throw error("unexpected end of input");
+        }
+    }
+
+    @Override
+    public long tokenOffset() {
+        return tokenStart - start;
+    }
+
+    @Override
+    public long offset() {
+        return position - start;
+    }
+
+    @Override
+    public IOException error(String message) {
+        int line = 1;
+        int lineStart = start;
+        for (int i = start; i < position && i < end; i++) {
+            if (at(i) == '\n') {
+                ++line;
+                lineStart = i + 1;
+            }
+        }
+        return new MalformedJsonException(message, position - start, line, position - lineStart + 1);
+    }
+
+    @Override
+    public void close() {
+        current = null;
+    }
+
+}
@@ -0,0 +1,102 @@
+package io.pivotal.labs.cfenv;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * A JSON document, held either as characters or as UTF-8 bytes. Byte documents are parsed straight from their buffer, which may be memory-mapped, without being decoded into a string first.
+ */
+abstract class JsonSource {
+
+    static JsonSource of(String json) {
+        return new CharSource(json, 0, json.length());
+    }
+
+    static JsonSource of(ByteBuffer json) {
+        return new ByteSource(json.slice());
+    }
+
+    abstract JsonTokenizer open(JsonBackend backend) throws IOException;
+
+    abstract int length();
+
+    /**
+     * Finds the first occurrence of an ASCII character at or after an offset.
+     *
+     * @return the offset of the character, or -1 if it does not occur
+     */
+    abstract int indexOf(char c, int from);
+
+    /**
+     * Gets the part of this document between two offsets, as a document in its own right. Offsets are in characters for character documents, and bytes for byte documents. The part is a view of this document, not a copy.
+     */
+    abstract JsonSource slice(int start, int end);
+
+    private static class CharSource extends JsonSource {
+        private final String json;
+        private final int start;
+        private final int end;
+
+        private CharSource(String json, int start, int end) {
+            this.json = json;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        JsonTokenizer open(JsonBackend backend) throws IOException {
+            return backend.open(json, start, end);
+        }
+
+        @Override
+        int length() {
+            return end - start;
+        }
+
+        @Override
+        int indexOf(char c, int from) {
+            int index = json.indexOf(c, start + from);
+            return index < 0 || index >= end ? -1 : index - start;
+        }
+
+        @Override
+        JsonSource slice(int start, int end) {
+            return new CharSource(json, this.start + start, this.start + end);
+        }
+    }
+
+    private static class ByteSource extends JsonSource {
+        private final ByteBuffer json;
+
+        private ByteSource(ByteBuffer json) {
+            this.json = json;
+        }
+
+        @Override
+        JsonTokenizer open(JsonBackend backend) throws IOException {
+            return backend.open(json.duplicate());
+        }
+
+        @Override
+        int length() {
+            return json.limit();
+        }
+
+        @Override
+        int indexOf(char c, int from) {
+            for (int i = from; i < json.limit(); i++) {
+                if (json.get(i) == c) return i;
+            }
+            return -1;
+        }
+
+        @Override
+        JsonSource slice(int start, int end) {
+            ByteBuffer slice = json.duplicate();
+            slice.position(start);
+            slice.limit(end);
+            return new ByteSource(slice.slice());
+        }
+    }
+
+}
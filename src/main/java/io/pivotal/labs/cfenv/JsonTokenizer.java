@@ -0,0 +1,62 @@
+package io.pivotal.labs.cfenv;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * A pull parser over a JSON document, as used by {@link ServiceParser}. This is the subset of a streaming JSON parser that we need, so that we can plug in either Jackson or our own {@link JsonReader}.
+ */
+interface JsonTokenizer extends Closeable {
+
+    enum Token {
+        START_OBJECT, END_OBJECT, START_ARRAY, END_ARRAY, FIELD_NAME, STRING, INTEGER, FLOAT, TRUE, FALSE, NULL
+    }
+
+    /**
+     * Advances to the next token.
+     *
+     * @return the next token, or null at the end of the input
+     */
+    Token next() throws IOException;
+
+    Token current();
+
+    /**
+     * Gets the text of the current token, which must be a field name or a string.
+     */
+    String text() throws IOException;
+
+    /**
+     * Gets the length of the text of the current token, which must be a field name or a string. This may be the length before escape sequences are decoded, and may be in bytes rather than characters, but is never less than the decoded length in characters.
+     */
+    int textLength() throws IOException;
+
+    /**
+     * Gets the value of the current token, which must be a number, as an Integer, Long, or BigInteger if it is integral, or a Double otherwise.
+     */
+    Number number() throws IOException;
+
+    /**
+     * If the current token starts an object or array, advances to the token which ends it; otherwise, does nothing.
+     */
+    void skipChildren() throws IOException;
+
+    /**
+     * Gets the offset in the input at which the current token starts, or some earlier point no further back than the preceding field name.
+     */
+    long tokenOffset();
+
+    /**
+     * Gets the offset in the input just after the current token.
+     */
+    long offset();
+
+    /**
+     * Creates an exception describing a problem at the current token.
+     */
+    IOException error(String message);
+
+    @Override
+    void close() throws IOException;
+
+}
@@ -0,0 +1,59 @@
+package io.pivotal.labs.cfenv;
+
+import java.util.Objects;
+
+/**
+ * Lookup of string keys held in an array, as used by the compact collections. Small arrays are searched linearly, which is quicker than hashing for a handful of keys; larger ones get an open-addressed table of slots, each holding one more than the index of a key, or zero if empty.
+ */
+final class KeyIndex {
+
+    static final int LINEAR_THRESHOLD = 8;
+
+    private KeyIndex() {}
+
+    /**
+     * Builds the slots for an array of distinct keys.
+     *
+     * @return the slots, or null if the array is small enough to search linearly
+     */
+    static int[] build(String[] keys, int size) {
+        if (size <= LINEAR_THRESHOLD) return null;
+        int[] slots = new int[Integer.highestOneBit(size * 2 - 1) << 1];
+        int mask = slots.length - 1;
+        for (int i = 0; i < size; i++) {
+            int slot = spread(keys[i]) & mask;
+            while (slots[slot] != 0) slot = (slot + 1) & mask;
+            slots[slot] = i + 1;
+        }
+        return slots;
+    }
+
+    /**
+     * Finds a key.
+     *
+     * @return the index of the key in the array, or -1 if it is not there
+     */
+    static int find(String[] keys, int size, int[] slots, Object key) {
+        if (slots == null) {
+            for (int i = 0; i < size; i++) {
+                if (Objects.equals(keys[i], key)) return i;
+            }
+            return -1;
+        }
+
+        int mask = slots.length - 1;
+        int slot = spread(key) & mask;
+        int entry;
+        while ((entry = slots[slot]) != 0) {
+            if (Objects.equals(keys[entry - 1], key)) return entry - 1;
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private static int spread(Object key) {
+        int hash = key == null ? 0 : key.hashCode();
+        return hash ^ (hash >>> 16);
+    }
+
+}
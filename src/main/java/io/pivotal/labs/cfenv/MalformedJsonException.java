@@ -0,0 +1,31 @@
+package io.pivotal.labs.cfenv;
+
+import java.io.IOException;
+
+/**
+ * A problem with the syntax or structure of a JSON document, or a breach of some {@link ParsingLimits}. The message gives the position of the problem, but never includes the document itself.
+ */
+class MalformedJsonException extends IOException {
+
+    private static final long serialVersionUID = 1L;
+
+    private final long offset;
+
+    /**
+     * Creates an exception describing a problem with the document as a whole.
+     */
+    MalformedJsonException(String message) {
+        super(message);
+        this.offset = -1;
+    }
+
+    MalformedJsonException(String message, long offset, int line, int column) {
+        super(message + " at offset " + offset + " (line " + line + ", column " + column + ")");
+        this.offset = offset;
+    }
+
+    long getOffset() {
+        return offset;
+    }
+
+}
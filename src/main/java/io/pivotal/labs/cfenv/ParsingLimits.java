@@ -0,0 +1,129 @@
+package io.pivotal.labs.cfenv;
+
+/**
+ * Limits on the size and shape of a `VCAP_SERVICES` document, to protect an application from documents which are too large or too deeply nested to handle. Limits are checked as the document is parsed, so parsing stops as soon as one is exceeded, without reading the rest of the document.
+ *
+ * Instances are immutable; each of the limit methods returns a modified copy, so they can be chained:
+ *
+ * ----
+ * ParsingLimits limits = ParsingLimits.none().maxLength(1 << 20).maxDepth(32);
+ * new CloudFoundryEnvironment(System::getenv, ParsingOptions.defaults().limits(limits));
+ * ----
+ */
+public class ParsingLimits implements Cloneable {
+
+    private static final ParsingLimits NONE = new ParsingLimits();
+
+    private long maxLength = Long.MAX_VALUE;
+    private int maxDepth = Integer.MAX_VALUE;
+    private int maxServices = Integer.MAX_VALUE;
+    private int maxCredentialEntries = Integer.MAX_VALUE;
+    private int maxStringLength = Integer.MAX_VALUE;
+
+    private ParsingLimits() {}
+
+    /**
+     * Gets a set of limits which limits nothing.
+     *
+     * @return no limits
+     */
+    public static ParsingLimits none() {
+        return NONE;
+    }
+
+    /**
+     * Limits the length of the whole document. This is counted in bytes for documents given as bytes, and characters for documents given as strings.
+     *
+     * @param maxLength the maximum length
+     * @return a copy of these limits with the given maximum length
+     */
+    public ParsingLimits maxLength(long maxLength) {
+        ParsingLimits copy = copy();
+        copy.maxLength = maxLength;
+        return copy;
+    }
+
+    /**
+     * Limits how deeply objects and arrays may be nested. The outermost object of the document is at depth 1, so the credentials object of a service is at depth 4.
+     *
+     * @param maxDepth the maximum depth
+     * @return a copy of these limits with the given maximum depth
+     */
+    public ParsingLimits maxDepth(int maxDepth) {
+        ParsingLimits copy = copy();
+        copy.maxDepth = maxDepth;
+        return copy;
+    }
+
+    /**
+     * Limits the number of services in the document.
+     *
+     * @param maxServices the maximum number of services
+     * @return a copy of these limits with the given maximum number of services
+     */
+    public ParsingLimits maxServices(int maxServices) {
+        ParsingLimits copy = copy();
+        copy.maxServices = maxServices;
+        return copy;
+    }
+
+    /**
+     * Limits the number of entries in the credentials of each service. Every value counts as an entry, including the values of nested objects, and the elements of arrays, and the nested objects and arrays themselves.
+     *
+     * @param maxCredentialEntries the maximum number of entries
+     * @return a copy of these limits with the given maximum number of entries
+     */
+    public ParsingLimits maxCredentialEntries(int maxCredentialEntries) {
+        ParsingLimits copy = copy();
+        copy.maxCredentialEntries = maxCredentialEntries;
+        return copy;
+    }
+
+    /**
+     * Limits the length of any string in the document, including field names. This is counted in the same units as the {@linkplain #maxLength(long) length of the document}, before any escape sequences are decoded.
+     *
+     * @param maxStringLength the maximum length of a string
+     * @return a copy of these limits with the given maximum length of a string
+     */
+    public ParsingLimits maxStringLength(int maxStringLength) {
+        ParsingLimits copy = copy();
+        copy.maxStringLength = maxStringLength;
+        return copy;
+    }
+
+    public long getMaxLength() {
+        return maxLength;
+    }
+
+    public int getMaxDepth() {
+        return maxDepth;
+    }
+
+    public int getMaxServices() {
+        return maxServices;
+    }
+
+    public int getMaxCredentialEntries() {
+        return maxCredentialEntries;
+    }
+
+    public int getMaxStringLength() {
+        return maxStringLength;
+    }
+
+    /**
+     * Checks whether any of the limits which have to be checked token by token are set.
+     */
+    boolean limitsTokens() {
+        return maxDepth != Integer.MAX_VALUE || maxCredentialEntries != Integer.MAX_VALUE || maxStringLength != Integer.MAX_VALUE;
+    }
+
+    private ParsingLimits copy() {
+        try {
+            return (ParsingLimits) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+}
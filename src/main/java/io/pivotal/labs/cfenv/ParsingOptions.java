@@ -0,0 +1,156 @@
+package io.pivotal.labs.cfenv;
+
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Options controlling how a {@link CloudFoundryEnvironment} parses `VCAP_SERVICES`. Instances are immutable; each of the option methods returns a modified copy, so they can be chained:
+ *
+ * ----
+ * new CloudFoundryEnvironment(System::getenv, ParsingOptions.defaults().lazyCredentials());
+ * ----
+ */
+public class ParsingOptions implements Cloneable {
+
+    private static final ParsingOptions DEFAULTS = new ParsingOptions();
+
+    private boolean lazyCredentials;
+    private boolean cacheCredentialPaths;
+    private JsonBackend jsonBackend;
+    private ForkJoinPool pool;
+    private ParsingLimits limits = ParsingLimits.none();
+    private StringTable stringTable;
+
+    private ParsingOptions() {}
+
+    /**
+     * Gets the default options, which parse everything eagerly, when the environment is constructed.
+     *
+     * @return the default options
+     */
+    public static ParsingOptions defaults() {
+        return DEFAULTS;
+    }
+
+    /**
+     * Defers parsing each service's credentials until they are first used. Only the structure of the document, and the name, label, plan, and tags of each service, are parsed when the environment is constructed; the credentials of each service are parsed on the first call to one of its credential methods, and then kept. This saves time and memory when an application only uses a few of its bound services.
+     *
+     * @return a copy of these options which parses credentials lazily
+     */
+    public ParsingOptions lazyCredentials() {
+        ParsingOptions copy = copy();
+        copy.lazyCredentials = true;
+        return copy;
+    }
+
+    public boolean isLazyCredentials() {
+        return lazyCredentials;
+    }
+
+    /**
+     * Caches the resolution of {@link CredentialPath}s in each service. A service then remembers the map at the end of each path it is asked for, so looking up a deep path again skips the walk down to it. This pays off when the same nested credentials are read over and over, as by a filter run on every request; the cost is a small map in each service, holding an entry for each path used.
+     *
+     * @return a copy of these options which caches paths in each service
+     */
+    public ParsingOptions cacheCredentialPaths() {
+        ParsingOptions copy = copy();
+        copy.cacheCredentialPaths = true;
+        return copy;
+    }
+
+    public boolean isCacheCredentialPaths() {
+        return cacheCredentialPaths;
+    }
+
+    /**
+     * Chooses the JSON parser to use. By default, this is {@linkplain JsonBackend#getDefault() Jackson if it is available}.
+     *
+     * @param jsonBackend the parser to use
+     * @return a copy of these options which uses the given parser
+     */
+    public ParsingOptions jsonBackend(JsonBackend jsonBackend) {
+        ParsingOptions copy = copy();
+        copy.jsonBackend = jsonBackend;
+        return copy;
+    }
+
+    public JsonBackend getJsonBackend() {
+        return jsonBackend != null ? jsonBackend : JsonBackend.getDefault();
+    }
+
+    /**
+     * Parses services in parallel, using the common fork/join pool.
+     *
+     * @return a copy of these options which parses services in parallel
+     * @see #parallel(ForkJoinPool)
+     */
+    public ParsingOptions parallel() {
+        return parallel(ForkJoinPool.commonPool());
+    }
+
+    /**
+     * Parses services in parallel, using a given fork/join pool. The document is first scanned to find where each service's object lies, and then the services are parsed and built in parallel. This only pays off for very large documents, with hundreds or thousands of services; it is slower for small ones.
+     *
+     * @param pool the pool in which to parse the services
+     * @return a copy of these options which parses services in parallel
+     */
+    public ParsingOptions parallel(ForkJoinPool pool) {
+        ParsingOptions copy = copy();
+        copy.pool = pool;
+        return copy;
+    }
+
+    /**
+     * Gets the pool in which to parse services in parallel.
+     *
+     * @return the pool, or null if services are to be parsed sequentially
+     */
+    public ForkJoinPool getPool() {
+        return pool;
+    }
+
+    /**
+     * Sets limits on the size and shape of the document. Parsing fails as soon as any limit is exceeded. By default, there are no limits.
+     *
+     * @param limits the limits
+     * @return a copy of these options with the given limits
+     */
+    public ParsingOptions limits(ParsingLimits limits) {
+        ParsingOptions copy = copy();
+        copy.limits = limits;
+        return copy;
+    }
+
+    public ParsingLimits getLimits() {
+        return limits;
+    }
+
+    /**
+     * Deduplicates strings using a given table. By default, each environment is parsed with a table of its own, which deduplicates strings within that environment, and is discarded afterwards (or, if credentials are {@linkplain #lazyCredentials() parsed lazily}, when the environment is). Sharing a table between environments also deduplicates strings across them.
+     *
+     * @param stringTable the table to use
+     * @return a copy of these options which uses the given table
+     */
+    public ParsingOptions stringTable(StringTable stringTable) {
+        ParsingOptions copy = copy();
+        copy.stringTable = stringTable;
+        return copy;
+    }
+
+    /**
+     * Gets the table used to deduplicate strings.
+     *
+     * @return the table, or null if each environment is to use a table of its own
+     */
+    public StringTable getStringTable() {
+        return stringTable;
+    }
+
+    private ParsingOptions copy() {
+        try {
+            return (ParsingOptions) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+}
@@ -0,0 +1,223 @@
+package io.pivotal.labs.cfenv;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A holder for an environment read from a `VCAP_SERVICES` document in a file, which reads the file again whenever it changes. This suits platforms which rotate credentials by rewriting a mounted file, rather than by restarting the application.
+ *
+ * The file is watched from a background thread, using a {@link WatchService} where the file system supports one. Some do not, and some ways of replacing a file, such as swapping a symbolic link, do not always produce events, so the file is also checked at a regular interval. When the file has changed, it is parsed on the background thread, and the new environment is published through a single volatile reference; {@link #get()} never blocks, and never sees a partly built environment. Environments are immutable, so one obtained before a reload remains valid, and can be used to finish whatever it was being used for.
+ *
+ * If a changed file cannot be read or parsed, the previous environment is kept, and the problem is made available through {@link #getReloadFailure()}.
+ *
+ * Code which needs to act on a change, such as reconnecting to a database whose password was rotated, can {@linkplain #addListener(EnvironmentListener) add a listener}, which is told which services changed. If a listener fails, the failure is passed to the thread's {@link Thread.UncaughtExceptionHandler}, which by default prints it, and kept for {@link #getListenerFailure()}.
+ *
+ * Closing the holder stops the watching; the last environment remains available.
+ */
+public class ReloadingEnvironment implements Closeable {
+
+    private static final Duration DEFAULT_POLL_INTERVAL = Duration.ofSeconds(5);
+
+    private final Path file;
+    private final ParsingOptions options;
+    private final long pollMillis;
+    private final WatchService watchService;
+    private final Thread watcher;
+    private final List<EnvironmentListener> listeners = new CopyOnWriteArrayList<>();
+
+    private volatile CloudFoundryEnvironment environment;
+    private volatile Exception reloadFailure;
+    private volatile RuntimeException listenerFailure;
+    private volatile boolean closed;
+    private byte[] content;
+    private FileTime lastModified;
+
+    private ReloadingEnvironment(Path file, ParsingOptions options, Duration pollInterval) throws CloudFoundryEnvironmentException {
+        this.file = file.toAbsolutePath();
+        this.options = options;
+        this.pollMillis = Math.max(1, pollInterval.toMillis());
+        reload();
+        this.watchService = newWatchService(this.file);
+        this.watcher = new Thread(this::watchForChanges, "cf-env-reloader " + this.file);
+        this.watcher.setDaemon(true);
+        this.watcher.start();
+    }
+
+    /**
+     * Reads an environment from a file, and starts watching it, checking it at least every five seconds.
+     *
+     * @param file the file
+     * @return a holder for the environment
+     * @throws CloudFoundryEnvironmentException if the file could not be read, or the document is malformed
+     */
+    public static ReloadingEnvironment watch(Path file) throws CloudFoundryEnvironmentException {
+        return watch(file, ParsingOptions.defaults(), DEFAULT_POLL_INTERVAL);
+    }
+
+    /**
+     * Reads an environment from a file, and starts watching it.
+     *
+     * @param file         the file
+     * @param options      options controlling how the file is parsed
+     * @param pollInterval the longest time to go without checking the file, whether or not the file system reports a change
+     * @return a holder for the environment
+     * @throws CloudFoundryEnvironmentException if the file could not be read, or the document is malformed
+     */
+    public static ReloadingEnvironment watch(Path file, ParsingOptions options, Duration pollInterval) throws CloudFoundryEnvironmentException {
+        return new ReloadingEnvironment(file, options, pollInterval);
+    }
+
+    /**
+     * Gets the most recently read environment.
+     *
+     * @return the environment
+     */
+    public CloudFoundryEnvironment get() {
+        return environment;
+    }
+
+    /**
+     * Adds a listener which is told about each reload which adds, removes, or changes a service. Listeners are called one at a time, in the order in which reloads happen, on the thread which did the reload: usually the background thread, but the caller's thread for {@link #reload()}. A listener which throws an exception does not stop the other listeners from being called, or the file from being watched; the exception is passed to the uncaught exception handler of the thread which did the reload, and kept for {@link #getListenerFailure()}.
+     *
+     * @param listener the listener
+     */
+    public void addListener(EnvironmentListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(EnvironmentListener listener) {
+        listeners.remove(listener);
+    }
+
+    /**
+     * Gets the problem with the last attempt to reload the file, if it failed.
+     *
+     * @return the problem, or null if the last reload succeeded
+     */
+    public Exception getReloadFailure() {
+        return reloadFailure;
+    }
+
+    /**
+     * Gets the exception thrown by the last listener which failed, if any have. This is not cleared by later reloads, so that a failure is not lost before it is looked at.
+     *
+     * @return the exception, or null if no listener has failed
+     */
+    public RuntimeException getListenerFailure() {
+        return listenerFailure;
+    }
+
+    /**
+     * Reads the file again now, if it has changed, rather than waiting for the background thread to notice.
+     *
+     * @throws CloudFoundryEnvironmentException if the file could not be read, or the document is malformed; the previous environment is kept
+     */
+    public synchronized void reload() throws CloudFoundryEnvironmentException {
+        try {
+            FileTime modified = Files.readAttributes(file, BasicFileAttributes.class).lastModifiedTime();
+            byte[] content = Files.readAllBytes(file);
+            if (!Arrays.equals(content, this.content)) {
+                // parse from a copy on the heap, rather than a mapping, as the file may be rewritten under us
+                CloudFoundryEnvironment previous = environment;
+                environment = CloudFoundryEnvironment.fromJson(content, options);
+                this.content = content;
+                if (previous != null && !listeners.isEmpty()) notifyListeners(EnvironmentDiff.between(previous, environment));
+            }
+            lastModified = modified;
+            reloadFailure = null;
+        } catch (IOException e) {
+            CloudFoundryEnvironmentException exception = new CloudFoundryEnvironmentException("error reading JSON from " + file, e);
+            reloadFailure = exception;
+            throw exception;
+        } catch (CloudFoundryEnvironmentException e) {
+            reloadFailure = e;
+            throw e;
+        }
+    }
+
+    private void notifyListeners(EnvironmentDiff diff) {
+        if (diff.isEmpty()) return;
+        for (EnvironmentListener listener : listeners) {
+            try {
+                listener.environmentChanged(diff);
+            } catch (RuntimeException e) {
+                // the listener's problem; the reload itself succeeded, so report it, and carry on
+                listenerFailure = e;
+                Thread thread = Thread.currentThread();
+                thread.getUncaughtExceptionHandler().uncaughtException(thread, e);
+            }
+        }
+    }
+
+    private static WatchService newWatchService(Path file) {
+        Path directory = file.getParent();
+        if (directory == null) return null;
+        try {
+            WatchService watchService = file.getFileSystem().newWatchService();
+            directory.register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            return watchService;
+        } catch (IOException | UnsupportedOperationException e) {
+            return null;
+        }
+    }
+
+    /**
+     * Waits for an event or the end of the poll interval, whichever is first, then reloads the file. After an event, the file is always read and compared with what was read before; after a timeout, it is only read if its modification time has changed.
+     */
+    private void watchForChanges() {
+        while (!closed) {
+            boolean changed;
+            try {
+                if (watchService != null) {
+                    WatchKey key = watchService.poll(pollMillis, TimeUnit.MILLISECONDS);
+                    changed = key != null;
+                    if (key != null) {
+                        key.pollEvents();
+                        key.reset();
+                    }
+                } else {
+                    Thread.sleep(pollMillis);
+                    changed = false;
+                }
+            } catch (InterruptedException | ClosedWatchServiceException e) {
+                return;
+            }
+
+            if (closed) return;
+            try {
+                if (changed || hasBeenModified()) reload();
+            } catch (CloudFoundryEnvironmentException e) {
+                // kept in reloadFailure; try again on the next change
+            }
+        }
+    }
+
+    private synchronized boolean hasBeenModified() {
+        try {
+            return !Files.readAttributes(file, BasicFileAttributes.class).lastModifiedTime().equals(lastModified);
+        } catch (IOException e) {
+            return true;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        closed = true;
+        watcher.interrupt();
+        if (watchService != null) watchService.close();
+    }
+
+}
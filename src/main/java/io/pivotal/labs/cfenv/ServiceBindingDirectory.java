@@ -0,0 +1,153 @@
+package io.pivotal.labs.cfenv;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Reads services from a directory of https://servicebinding.io/[service bindings], as Kubernetes and some other platforms provide them, instead of in `VCAP_SERVICES`. Each binding is a directory, named for the service, holding a file for each credential, named for its key:
+ *
+ * ----
+ * $SERVICE_BINDING_ROOT/
+ *     myapp-db/
+ *         type        -> postgresql
+ *         provider    -> bitnami
+ *         uri         -> postgres://...
+ *         ca.crt      -> -----BEGIN CERTIFICATE-----...
+ * ----
+ *
+ * Each binding becomes a {@link CloudFoundryService} whose label is its `type`, whose tags are its `type` and `provider`, and whose credentials are its other files, keyed by file name, with string values. It has no plan. Files and directories whose names start with a dot are ignored, as are the hidden directories through which Kubernetes updates mounted volumes.
+ *
+ * The directory is scanned once, in a single walk of the tree, which reads the names of the bindings and their files, and the contents of the small `type` and `provider` files. The other files are not read until their credentials are first asked for, so a large CA bundle which is never used is never read; each is then read once, through a {@link java.nio.channels.FileChannel}, and kept. Getting a service's {@linkplain CloudFoundryService#getCredentials() credentials} as a map does not read them, but iterating over them, comparing them, or {@linkplain CloudFoundryService#getFingerprint() fingerprinting} the service does.
+ */
+public final class ServiceBindingDirectory {
+
+    static final String SERVICE_BINDING_ROOT = "SERVICE_BINDING_ROOT";
+
+    private static final String TYPE = "type";
+    private static final String PROVIDER = "provider";
+
+    private ServiceBindingDirectory() {}
+
+    /**
+     * Reads the services bound in a directory.
+     *
+     * @param root the directory holding the bindings
+     * @return an environment holding the services, in order of name
+     * @throws CloudFoundryEnvironmentException if the directory could not be read, or a binding has no type
+     */
+    public static CloudFoundryEnvironment read(Path root) throws CloudFoundryEnvironmentException {
+        return CloudFoundryEnvironment.of(scan(root), null);
+    }
+
+    /**
+     * Reads the services described by an environment: those bound in the directory named by `SERVICE_BINDING_ROOT`, and those in `VCAP_SERVICES`, if either or both are defined. Services from `VCAP_SERVICES` come first, in their usual order, followed by those from the directory, in order of name; a binding with the same name as a service in `VCAP_SERVICES` replaces it, in its position. The environment's {@linkplain CloudFoundryEnvironment#getApplication() application} is that described by the environment.
+     *
+     * @param environment the underlying environment from which to obtain the environment variables
+     * @return an environment holding the services
+     * @throws CloudFoundryEnvironmentException if neither variable is defined, the directory could not be read, or `VCAP_SERVICES` is malformed
+     */
+    public static CloudFoundryEnvironment read(Environment environment) throws CloudFoundryEnvironmentException {
+        String root = environment.get(SERVICE_BINDING_ROOT);
+        String vcapServices = environment.get(CloudFoundryEnvironment.VCAP_SERVICES);
+        boolean hasRoot = root != null && !root.isEmpty();
+        boolean hasVcapServices = vcapServices != null && !vcapServices.isEmpty();
+        if (!hasRoot && !hasVcapServices) {
+            throw new CloudFoundryEnvironmentException("environment variable not defined: " + SERVICE_BINDING_ROOT + " or " + CloudFoundryEnvironment.VCAP_SERVICES);
+        }
+
+        List<CloudFoundryService> services = new ArrayList<>();
+        if (hasVcapServices) services.addAll(new CloudFoundryEnvironment(environment).getServices());
+        if (hasRoot) {
+            Map<String, Integer> positions = new HashMap<>();
+            for (int i = 0; i < services.size(); i++) {
+                positions.put(services.get(i).getName(), i);
+            }
+            for (CloudFoundryService binding : scan(Paths.get(root))) {
+                Integer position = positions.get(binding.getName());
+                if (position != null) {
+                    services.set(position, binding);
+                } else {
+                    services.add(binding);
+                }
+            }
+        }
+        return CloudFoundryEnvironment.of(services, environment);
+    }
+
+    /**
+     * Walks the directory to a depth of two - the bindings, and their files - collecting the files of each binding, then builds a service for each. Symbolic links are followed, as Kubernetes mounts each file as a link into a hidden, timestamped directory.
+     */
+    private static List<CloudFoundryService> scan(Path root) throws CloudFoundryEnvironmentException {
+        Map<String, Map<String, Path>> bindings = new TreeMap<>();
+        try {
+            Files.walkFileTree(root, EnumSet.of(FileVisitOption.FOLLOW_LINKS), 2, new SimpleFileVisitor<Path>() {
+                @Override
+                public FileVisitResult preVisitDirectory(Path directory, BasicFileAttributes attributes) {
+                    if (directory.equals(root)) return FileVisitResult.CONTINUE;
+                    if (isHidden(directory)) return FileVisitResult.SKIP_SUBTREE;
+                    bindings.put(directory.getFileName().toString(), new TreeMap<>());
+                    return FileVisitResult.CONTINUE;
+                }
+
+                @Override
+                public FileVisitResult visitFile(Path file, BasicFileAttributes attributes) {
+                    Path binding = file.getParent();
+                    if (binding == null || binding.equals(root) || !attributes.isRegularFile() || isHidden(file)) return FileVisitResult.CONTINUE;
+                    Map<String, Path> files = bindings.get(binding.getFileName().toString());
+                    if (files != null) files.put(file.getFileName().toString(), file);
+                    return FileVisitResult.CONTINUE;
+                }
+            });
+        } catch (IOException e) {
+            throw new CloudFoundryEnvironmentException("error reading service bindings from " + root, e);
+        }
+
+        List<CloudFoundryService> services = new ArrayList<>(bindings.size());
+        for (Map.Entry<String, Map<String, Path>> binding : bindings.entrySet()) {
+            services.add(toService(binding.getKey(), binding.getValue(), root));
+        }
+        return services;
+    }
+
+    private static CloudFoundryService toService(String name, Map<String, Path> files, Path root) throws CloudFoundryEnvironmentException {
+        Path typeFile = files.remove(TYPE);
+        Path providerFile = files.remove(PROVIDER);
+        if (typeFile == null) throw new CloudFoundryEnvironmentException("service binding has no type: " + root.resolve(name));
+        String type = readMetadata(typeFile);
+        String provider = providerFile != null ? readMetadata(providerFile) : null;
+
+        List<String> tags = new ArrayList<>(2);
+        tags.add(type);
+        if (provider != null) tags.add(provider);
+
+        String[] keys = files.keySet().toArray(new String[files.size()]);
+        Path[] paths = files.values().toArray(new Path[files.size()]);
+        return new CloudFoundryService(name, type, null, CompactSet.copyOf(tags), new FileCredentials(keys, paths), null, false);
+    }
+
+    private static String readMetadata(Path file) throws CloudFoundryEnvironmentException {
+        try {
+            return new FileCredentials(new String[]{TYPE}, new Path[]{file}).get(TYPE).toString().trim();
+        } catch (UncheckedIOException e) {
+            throw new CloudFoundryEnvironmentException(e.getMessage(), e.getCause());
+        }
+    }
+
+    private static boolean isHidden(Path path) {
+        return path.getFileName().toString().startsWith(".");
+    }
+
+}
@@ -0,0 +1,117 @@
+package io.pivotal.labs.cfenv;
+
+import java.util.Arrays;
+import java.util.Objects;
+
+/**
+ * Criteria for {@linkplain CloudFoundryEnvironment#find(ServiceCriteria) finding services} by their label, plan, and tags. A service must meet all the criteria given. Instances are immutable; each of the criteria methods returns a modified copy, so they can be chained:
+ *
+ * ----
+ * environment.find(ServiceCriteria.any().label("elephantsql").withAnyTag("postgresql", "relational"));
+ * ----
+ */
+public class ServiceCriteria implements Cloneable {
+
+    private static final ServiceCriteria ANY = new ServiceCriteria();
+
+    private String label;
+    private String plan;
+    private String[] allTags = new String[0];
+    private String[][] anyTags = new String[0][];
+
+    private ServiceCriteria() {}
+
+    /**
+     * Gets criteria which any service meets.
+     *
+     * @return no criteria
+     */
+    public static ServiceCriteria any() {
+        return ANY;
+    }
+
+    /**
+     * Requires a service to have a given label.
+     *
+     * @param label the label
+     * @return a copy of these criteria which also requires the given label
+     * @throws NullPointerException if the label is null
+     */
+    public ServiceCriteria label(String label) {
+        ServiceCriteria copy = copy();
+        copy.label = Objects.requireNonNull(label, "label");
+        return copy;
+    }
+
+    /**
+     * Requires a service to have a given plan.
+     *
+     * @param plan the plan
+     * @return a copy of these criteria which also requires the given plan
+     * @throws NullPointerException if the plan is null
+     */
+    public ServiceCriteria plan(String plan) {
+        ServiceCriteria copy = copy();
+        copy.plan = Objects.requireNonNull(plan, "plan");
+        return copy;
+    }
+
+    /**
+     * Requires a service to have all of some tags.
+     *
+     * @param tags the tags
+     * @return a copy of these criteria which also requires all the given tags
+     */
+    public ServiceCriteria withAllTags(String... tags) {
+        ServiceCriteria copy = copy();
+        copy.allTags = concat(allTags, tags);
+        return copy;
+    }
+
+    /**
+     * Requires a service to have at least one of some tags. If this is used more than once, a service must have one of the tags given each time.
+     *
+     * @param tags the tags
+     * @return a copy of these criteria which also requires one of the given tags
+     */
+    public ServiceCriteria withAnyTag(String... tags) {
+        ServiceCriteria copy = copy();
+        copy.anyTags = Arrays.copyOf(anyTags, anyTags.length + 1);
+        copy.anyTags[anyTags.length] = tags.clone();
+        return copy;
+    }
+
+    String getLabel() {
+        return label;
+    }
+
+    String getPlan() {
+        return plan;
+    }
+
+    String[] getAllTags() {
+        return allTags;
+    }
+
+    /**
+     * Gets the groups of tags of which a service must have at least one each.
+     */
+    String[][] getAnyTags() {
+        return anyTags;
+    }
+
+    private static String[] concat(String[] first, String[] second) {
+        String[] result = Arrays.copyOf(first, first.length + second.length);
+        System.arraycopy(second, 0, result, first.length, second.length);
+        return result;
+    }
+
+    private ServiceCriteria copy() {
+        try {
+            return (ServiceCriteria) clone();
+        } catch (CloneNotSupportedException e) {
+            throw new AssertionError(e);
+        }
+    }
+
+}
@@ -0,0 +1,70 @@
+package io.pivotal.labs.cfenv;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Indexes of the services in an environment by label, plan, and tag. Each service is numbered by its position in the environment, and each label, plan, and tag maps to a bitset of the numbers of the services which have it; the tags form a dictionary shared by all the services. Finding services is then a matter of a few lookups and bitwise operations, rather than a scan of every service.
+ */
+final class ServiceIndex {
+
+    private final CloudFoundryService[] services;
+    private final Map<String, BitSet> byLabel;
+    private final Map<String, BitSet> byPlan;
+    private final Map<String, BitSet> byTag;
+
+    ServiceIndex(Collection<CloudFoundryService> services) {
+        this.services = services.toArray(new CloudFoundryService[services.size()]);
+        Map<String, BitSet> byLabel = new HashMap<>();
+        Map<String, BitSet> byPlan = new HashMap<>();
+        Map<String, BitSet> byTag = new HashMap<>();
+        for (int i = 0; i < this.services.length; i++) {
+            CloudFoundryService service = this.services[i];
+            if (service.getLabel() != null) byLabel.computeIfAbsent(service.getLabel(), key -> new BitSet()).set(i);
+            if (service.getPlan() != null) byPlan.computeIfAbsent(service.getPlan(), key -> new BitSet()).set(i);
+            for (String tag : service.getTags()) {
+                byTag.computeIfAbsent(tag, key -> new BitSet()).set(i);
+            }
+        }
+        this.byLabel = CompactMap.copyOf(byLabel);
+        this.byPlan = CompactMap.copyOf(byPlan);
+        this.byTag = CompactMap.copyOf(byTag);
+    }
+
+    List<CloudFoundryService> find(ServiceCriteria criteria) {
+        BitSet matches = new BitSet(services.length);
+        matches.set(0, services.length);
+        if (criteria.getLabel() != null) and(matches, byLabel.get(criteria.getLabel()));
+        if (criteria.getPlan() != null) and(matches, byPlan.get(criteria.getPlan()));
+        for (String tag : criteria.getAllTags()) {
+            and(matches, byTag.get(tag));
+        }
+        for (String[] tags : criteria.getAnyTags()) {
+            BitSet any = new BitSet(services.length);
+            for (String tag : tags) {
+                BitSet withTag = byTag.get(tag);
+                if (withTag != null) any.or(withTag);
+            }
+            matches.and(any);
+        }
+
+        List<CloudFoundryService> found = new ArrayList<>(matches.cardinality());
+        for (int i = matches.nextSetBit(0); i >= 0; i = matches.nextSetBit(i + 1)) {
+            found.add(services[i]);
+        }
+        return CompactList.copyOf(found);
+    }
+
+    private static void and(BitSet matches, BitSet other) {
+        if (other != null) {
+            matches.and(other);
+        } else {
+            matches.clear();
+        }
+    }
+
+}
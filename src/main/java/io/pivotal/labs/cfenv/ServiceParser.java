@@ -0,0 +1,294 @@
+package io.pivotal.labs.cfenv;
+
+import io.pivotal.labs.cfenv.JsonTokenizer.Token;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.RecursiveTask;
+import java.util.function.Supplier;
+
+/**
+ * Reads a `VCAP_SERVICES` document token by token, building each {@link CloudFoundryService} as soon as its object has been read. No intermediate tree of the whole document is built, and the credentials are read straight into the map the service keeps.
+ *
+ * Every string read is passed through a {@link StringTable}, so that strings which recur across services are only kept once. Objects, arrays, and tags are read into the immutable {@link CompactMap}, {@link CompactList}, and {@link CompactSet}, which are sized exactly to their contents.
+ */
+class ServiceParser {
+
+    private static final int SEQUENTIAL_THRESHOLD = 16;
+    private static final int SERVICE_DEPTH = 3;
+
+    private final ParsingOptions options;
+    private final StringTable strings;
+
+    private ServiceParser(ParsingOptions options) {
+        this.options = options;
+        this.strings = options.getStringTable() != null ? options.getStringTable() : new StringTable();
+    }
+
+    static List<CloudFoundryService> parse(JsonSource json, ParsingOptions options) throws IOException {
+        ParsingLimits limits = options.getLimits();
+        if (json.length() > limits.getMaxLength()) {
+            throw new MalformedJsonException("document is " + json.length() + " long, more than the limit of " + limits.getMaxLength());
+        }
+
+        ServiceParser parser = new ServiceParser(options);
+        return options.getPool() != null ? parser.parseInParallel(json) : parser.parseSequentially(json);
+    }
+
+    /**
+     * Parses a document which is a single JSON object, such as `VCAP_APPLICATION`, into an immutable map, as credentials are parsed.
+     */
+    static Map<String, Object> parseObject(JsonSource json, ParsingOptions options) throws IOException {
+        ServiceParser parser = new ServiceParser(options);
+        try (JsonTokenizer tokenizer = parser.open(json, 0)) {
+            expect(tokenizer, tokenizer.next(), Token.START_OBJECT);
+            return parser.readObject(tokenizer);
+        }
+    }
+
+    private List<CloudFoundryService> parseSequentially(JsonSource json) throws IOException {
+        try (JsonTokenizer tokenizer = open(json, 0)) {
+            List<CloudFoundryService> services = new ArrayList<>();
+
+            expect(tokenizer, tokenizer.next(), Token.START_OBJECT);
+            while (tokenizer.next() == Token.FIELD_NAME) {
+                expect(tokenizer, tokenizer.next(), Token.START_ARRAY);
+                while (tokenizer.next() != Token.END_ARRAY) {
+                    expect(tokenizer, tokenizer.current(), Token.START_OBJECT);
+                    checkServiceCount(tokenizer, services.size());
+                    services.add(readService(tokenizer, json));
+                }
+            }
+            expect(tokenizer, tokenizer.current(), Token.END_OBJECT);
+
+            return services;
+        }
+    }
+
+    /**
+     * Scans the document to find the start and end offset of each service object, then parses those parts of the document in a fork/join pool. The services are returned in document order, just as when parsing sequentially.
+     */
+    private List<CloudFoundryService> parseInParallel(JsonSource json) throws IOException {
+        int[] bounds = new int[64];
+        int count = 0;
+
+        try (JsonTokenizer tokenizer = open(json, 0)) {
+            expect(tokenizer, tokenizer.next(), Token.START_OBJECT);
+            while (tokenizer.next() == Token.FIELD_NAME) {
+                expect(tokenizer, tokenizer.next(), Token.START_ARRAY);
+                while (tokenizer.next() != Token.END_ARRAY) {
+                    expect(tokenizer, tokenizer.current(), Token.START_OBJECT);
+                    checkServiceCount(tokenizer, count);
+                    if (count * 2 == bounds.length) bounds = Arrays.copyOf(bounds, bounds.length * 2);
+                    bounds[count * 2] = json.indexOf('{', (int) tokenizer.tokenOffset());
+                    tokenizer.skipChildren();
+                    bounds[count * 2 + 1] = (int) tokenizer.offset();
+                    ++count;
+                }
+            }
+            expect(tokenizer, tokenizer.current(), Token.END_OBJECT);
+        }
+
+        try {
+            return options.getPool().invoke(new ParseTask(json, bounds, 0, count));
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+    }
+
+    private class ParseTask extends RecursiveTask<List<CloudFoundryService>> {
+        private static final long serialVersionUID = 1L;
+
+        private final JsonSource json;
+        private final int[] bounds;
+        private final int from;
+        private final int to;
+
+        private ParseTask(JsonSource json, int[] bounds, int from, int to) {
+            this.json = json;
+            this.bounds = bounds;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected List<CloudFoundryService> compute() {
+            if (to - from <= SEQUENTIAL_THRESHOLD) {
+                List<CloudFoundryService> services = new ArrayList<>(to - from);
+                for (int i = from; i < to; i++) {
+                    JsonSource serviceJson = json.slice(bounds[i * 2], bounds[i * 2 + 1]);
+                    try (JsonTokenizer tokenizer = open(serviceJson, SERVICE_DEPTH - 1)) {
+                        expect(tokenizer, tokenizer.next(), Token.START_OBJECT);
+                        services.add(readService(tokenizer, serviceJson));
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+                return services;
+            }
+
+            int middle = (from + to) >>> 1;
+            ParseTask right = new ParseTask(json, bounds, middle, to);
+            right.fork();
+            List<CloudFoundryService> services = new ParseTask(json, bounds, from, middle).compute();
+            services.addAll(right.join());
+            return services;
+        }
+    }
+
+    /**
+     * Opens a tokenizer over a document, or part of one, which checks the limits in the options if there are any.
+     *
+     * @param depth the depth in the whole document of the start of the part
+     */
+    private JsonTokenizer open(JsonSource json, int depth) throws IOException {
+        JsonTokenizer tokenizer = json.open(options.getJsonBackend());
+        ParsingLimits limits = options.getLimits();
+        return limits.limitsTokens() ? new GuardedTokenizer(tokenizer, limits, depth) : tokenizer;
+    }
+
+    private void checkServiceCount(JsonTokenizer tokenizer, int count) throws IOException {
+        int maxServices = options.getLimits().getMaxServices();
+        if (count >= maxServices) throw tokenizer.error("more services than the limit of " + maxServices);
+    }
+
+    private CloudFoundryService readService(JsonTokenizer tokenizer, JsonSource json) throws IOException {
+        String name = null;
+        String label = null;
+        String plan = null;
+        Set<String> tags = CompactSet.empty();
+        Map<String, Object> credentials = null;
+        Supplier<Map<String, Object>> credentialsLoader = null;
+
+        while (tokenizer.next() == Token.FIELD_NAME) {
+            String fieldName = tokenizer.text();
+            Token token = tokenizer.next();
+            switch (fieldName) {
+                case "name":
+                    name = readString(tokenizer, token);
+                    break;
+                case "label":
+                    label = readString(tokenizer, token);
+                    break;
+                case "plan":
+                    plan = readString(tokenizer, token);
+                    break;
+                case "tags":
+                    tags = readTags(tokenizer, token);
+                    break;
+                case "credentials":
+                    if (token != Token.NULL) {
+                        expect(tokenizer, token, Token.START_OBJECT);
+                        if (tokenizer instanceof GuardedTokenizer) ((GuardedTokenizer) tokenizer).beginCredentials();
+                        if (options.isLazyCredentials()) {
+                            credentialsLoader = skipCredentials(tokenizer, json);
+                        } else {
+                            credentials = readObject(tokenizer);
+                        }
+                        if (tokenizer instanceof GuardedTokenizer) ((GuardedTokenizer) tokenizer).endCredentials();
+                    }
+                    break;
+                default:
+                    tokenizer.skipChildren();
+            }
+        }
+
+        if (credentials == null && credentialsLoader == null) {
+            credentials = CompactMap.empty();
+        }
+
+        return new CloudFoundryService(name, label, plan, tags, credentials, credentialsLoader, options.isCacheCredentialPaths());
+    }
+
+    /**
+     * Skips over a credentials object, remembering where it lies in the document so that it can be parsed later. Skipping still checks that the object is well-formed, so parsing it later should not fail.
+     *
+     * Some versions of Jackson report the location of a value token as that of the field name before it, so we look for the opening brace from there; nothing between the field name "credentials" and its value can contain a brace.
+     */
+    private Supplier<Map<String, Object>> skipCredentials(JsonTokenizer tokenizer, JsonSource json) throws IOException {
+        int start = json.indexOf('{', (int) tokenizer.tokenOffset());
+        tokenizer.skipChildren();
+        int end = (int) tokenizer.offset();
+        JsonSource credentialsJson = json.slice(start, end);
+        return () -> parseCredentials(credentialsJson);
+    }
+
+    private Map<String, Object> parseCredentials(JsonSource json) {
+        try (JsonTokenizer tokenizer = json.open(options.getJsonBackend())) {
+            expect(tokenizer, tokenizer.next(), Token.START_OBJECT);
+            return readObject(tokenizer);
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private String readString(JsonTokenizer tokenizer, Token token) throws IOException {
+        if (token == Token.NULL) return null;
+        expect(tokenizer, token, Token.STRING);
+        return strings.intern(tokenizer.text());
+    }
+
+    private Set<String> readTags(JsonTokenizer tokenizer, Token token) throws IOException {
+        if (token == Token.NULL) return CompactSet.empty();
+        expect(tokenizer, token, Token.START_ARRAY);
+        List<String> tags = new ArrayList<>();
+        while ((token = tokenizer.next()) != Token.END_ARRAY) {
+            tags.add(readString(tokenizer, token));
+        }
+        return CompactSet.copyOf(tags);
+    }
+
+    private Map<String, Object> readObject(JsonTokenizer tokenizer) throws IOException {
+        CompactMap.Builder<Object> map = new CompactMap.Builder<>();
+        while (tokenizer.next() == Token.FIELD_NAME) {
+            String key = strings.intern(tokenizer.text());
+            tokenizer.next();
+            map.put(key, readValue(tokenizer));
+        }
+        return map.build();
+    }
+
+    private List<Object> readArray(JsonTokenizer tokenizer) throws IOException {
+        List<Object> list = new ArrayList<>();
+        while (tokenizer.next() != Token.END_ARRAY) {
+            list.add(readValue(tokenizer));
+        }
+        return CompactList.copyOf(list);
+    }
+
+    private Object readValue(JsonTokenizer tokenizer) throws IOException {
+        Token token = tokenizer.current();
+        if (token == null) throw tokenizer.error("unexpected end of input");
+        switch (token) {
+            case START_OBJECT:
+                return readObject(tokenizer);
+            case START_ARRAY:
+                return readArray(tokenizer);
+            case STRING:
+                return strings.intern(tokenizer.text());
+            case INTEGER:
+            case FLOAT:
+                return tokenizer.number();
+            case TRUE:
+                return Boolean.TRUE;
+            case FALSE:
+                return Boolean.FALSE;
+            case NULL:
+                return null;
+            default:
+                throw tokenizer.error("unexpected token: " + token);
+        }
+    }
+
+    private static void expect(JsonTokenizer tokenizer, Token actual, Token expected) throws IOException {
+        if (actual != expected) {
+            throw tokenizer.error("expected " + expected + " but got " + actual);
+        }
+    }
+
+}
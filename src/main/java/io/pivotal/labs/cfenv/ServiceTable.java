@@ -0,0 +1,35 @@
+package io.pivotal.labs.cfenv;
+
+import java.util.Objects;
+
+/**
+ * A table used to share identical services between environments, in the manner of a {@link StringTable}: a service which is bound to many applications appears, credentials and all, in each of their environments, but need only be kept once. Services are found by their {@linkplain CloudFoundryService#getFingerprint() fingerprints}, and then compared in full, so services are only shared if they really are identical.
+ *
+ * Like a string table, this has a fixed number of slots, each holding the most recent service which hashed to it, so it never grows, and deduplication is best-effort. It is safe for use by multiple threads; services are immutable, so they can be published through a race.
+ */
+final class ServiceTable {
+
+    private final CloudFoundryService[] slots;
+
+    ServiceTable(int capacity) {
+        slots = new CloudFoundryService[capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1];
+    }
+
+    CloudFoundryService intern(CloudFoundryService service) {
+        long fingerprint = service.getFingerprint();
+        int index = (int) (fingerprint ^ (fingerprint >>> 32)) & (slots.length - 1);
+        CloudFoundryService existing = slots[index];
+        if (existing != null && existing.getFingerprint() == fingerprint && sameContents(existing, service)) return existing;
+        slots[index] = service;
+        return service;
+    }
+
+    private static boolean sameContents(CloudFoundryService a, CloudFoundryService b) {
+        return Objects.equals(a.getName(), b.getName())
+                && Objects.equals(a.getLabel(), b.getLabel())
+                && Objects.equals(a.getPlan(), b.getPlan())
+                && Objects.equals(a.getTags(), b.getTags())
+                && a.getCredentials().equals(b.getCredentials());
+    }
+
+}
@@ -0,0 +1,50 @@
+package io.pivotal.labs.cfenv;
+
+import java.io.Reader;
+
+/**
+ * A reader over part of a string. This lets stream-based parsers read a slice of a document a block at a time, without the slice being copied into a string of its own first.
+ */
+class StringRangeReader extends Reader {
+
+    private final String string;
+    private final int end;
+    private int position;
+
+    StringRangeReader(String string, int start, int end) {
+        this.string = string;
+        this.position = start;
+        this.end = end;
+    }
+
+    @Override
+    public int read() {
+        return position < end ? string.charAt(position++) : -1;
+    }
+
+    @Override
+    public int read(char[] chars, int offset, int length) {
+        if (length == 0) return 0;
+        if (position >= end) return -1;
+        int count = Math.min(length, end - position);
+        string.getChars(position, position + count, chars, offset);
+        position += count;
+        return count;
+    }
+
+    @Override
+    public long skip(long count) {
+        int skipped = (int) Math.min(Math.max(count, 0), end - position);
+        position += skipped;
+        return skipped;
+    }
+
+    @Override
+    public boolean ready() {
+        return true;
+    }
+
+    @Override
+    public void close() {}
+
+}
@@ -0,0 +1,48 @@
+package io.pivotal.labs.cfenv;
+
+/**
+ * A table used to deduplicate the strings in parsed environments, so that a string which occurs many times - a label like "postgresql", a credential key like "uri", a hostname - is only kept once.
+ *
+ * The table has a fixed number of slots, and a string which hashes to a slot replaces whatever string was there before; it is a cache of recent strings, rather than a complete set. That means it can never grow, so it can safely be shared between environments, for as long as is convenient, without leaking memory. Deduplication is best-effort: two equal strings may still be kept separately, if some other string came between them in the same slot.
+ *
+ * Tables are safe for use by multiple threads.
+ */
+public class StringTable {
+
+    private static final int DEFAULT_CAPACITY = 4096;
+
+    private final String[] slots;
+
+    public StringTable() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    /**
+     * Creates a table.
+     *
+     * @param capacity the number of slots in the table, which will be rounded up to a power of two
+     */
+    public StringTable(int capacity) {
+        if (capacity < 1) throw new IllegalArgumentException("capacity must be positive: " + capacity);
+        slots = new String[capacity == 1 ? 1 : Integer.highestOneBit(capacity - 1) << 1];
+    }
+
+    /**
+     * Gets the canonical copy of a string.
+     *
+     * Slots are read and written without synchronization; that is safe, because strings are immutable, and so can be published through a race.
+     *
+     * @param string a string, or null
+     * @return a string equal to the given one, which may or may not be the same object; null if the string is null
+     */
+    public String intern(String string) {
+        if (string == null) return null;
+        int hash = string.hashCode();
+        int index = (hash ^ (hash >>> 16)) & (slots.length - 1);
+        String existing = slots[index];
+        if (existing != null && existing.hashCode() == hash && existing.equals(string)) return existing;
+        slots[index] = string;
+        return string;
+    }
+
+}
@@ -0,0 +1,140 @@
+package io.pivotal.labs.cfenv;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class BulkIngestTests {
+
+    private static final String SHARED_SERVICE = "{\"name\": \"audit-log\", \"label\": \"syslog\", \"credentials\": {\"uri\": \"syslog://logs.example.org\"}}";
+
+    @Test
+    public void shouldParseEachLineInOrderIsolatingFailures() throws Exception {
+        String ndjson = "{\"a\": [" + SHARED_SERVICE + ", {\"name\": \"db-1\", \"credentials\": {}}]}\n"
+                + "{\"a\": [{\"name\": \n"
+                + "\n"
+                + "{\"a\": [" + SHARED_SERVICE + "]}\n";
+        List<BulkIngest.Result> results = new ArrayList<>();
+
+        BulkIngest.defaults().parallelism(2).ingest(new ByteArrayInputStream(ndjson.getBytes(StandardCharsets.UTF_8)), results::add);
+
+        assertThat(results, hasSize(3));
+        assertThat(results.get(0).getLineNumber(), equalTo(1L));
+        assertThat(results.get(0).getEnvironment().getServiceNames(), contains("audit-log", "db-1"));
+        assertThat(results.get(1).getLineNumber(), equalTo(2L));
+        assertThat(results.get(1).isSuccess(), is(false));
+        assertThat(results.get(1).getFailure(), instanceOf(CloudFoundryEnvironmentException.class));
+        assertThat(results.get(2).getLineNumber(), equalTo(4L));
+        assertThat(results.get(2).getEnvironment().getService("audit-log"), sameInstance(results.get(0).getEnvironment().getService("audit-log")));
+    }
+
+    @Test
+    public void shouldStopReadingWhileTheConsumerFallsBehind() throws Exception {
+        AtomicInteger linesRead = new AtomicInteger();
+        InputStream endless = new InputStream() {
+            private byte[] line = new byte[0];
+            private int position;
+
+            @Override
+            public int read() {
+                if (position == line.length) {
+                    line = ("{\"a\": [{\"name\": \"app-" + linesRead.incrementAndGet() + "\"}]}\n").getBytes(StandardCharsets.UTF_8);
+                    position = 0;
+                }
+                return line[position++];
+            }
+        };
+
+        try (Stream<BulkIngest.Result> results = BulkIngest.defaults().maxInFlight(4).stream(endless)) {
+            Iterator<BulkIngest.Result> iterator = results.iterator();
+            assertThat(iterator.next().getEnvironment().getServiceNames(), contains("app-1"));
+            Thread.sleep(200);
+            int read = linesRead.get();
+            Thread.sleep(200);
+
+            assertThat(linesRead.get(), equalTo(read));
+            assertThat(iterator.next().getEnvironment().getServiceNames(), contains("app-2"));
+        }
+    }
+
+    @Test
+    public void shouldStopQuietlyWhenClosedWhileReadingALine() throws Exception {
+        CountDownLatch closed = new CountDownLatch(1);
+        InputStream slow = new InputStream() {
+            private final InputStream first = new ByteArrayInputStream("{\"a\": []}\n".getBytes(StandardCharsets.UTF_8));
+            private final InputStream second = new ByteArrayInputStream("{\"a\": []}\n".getBytes(StandardCharsets.UTF_8));
+
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return read(b, 0, 1) < 0 ? -1 : b[0];
+            }
+
+            @Override
+            public int read(byte[] b, int offset, int length) throws IOException {
+                if (first.available() > 0) return first.read(b, offset, length);
+                // like a socket, ignore interrupts, and only give the next line once the results have been closed
+                while (closed.getCount() > 0) {
+                    try {
+                        closed.await();
+                    } catch (InterruptedException e) {
+                        // keep waiting
+                    }
+                }
+                return second.read(b, offset, length);
+            }
+        };
+        List<Throwable> reported = new CopyOnWriteArrayList<>();
+        Thread.UncaughtExceptionHandler handler = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler((thread, e) -> reported.add(e));
+
+        try {
+            try (Stream<BulkIngest.Result> results = BulkIngest.defaults().stream(slow)) {
+                assertThat(results.iterator().next().isSuccess(), is(true));
+            }
+            closed.countDown();
+            for (Thread thread : Thread.getAllStackTraces().keySet()) {
+                if (thread.getName().equals("cf-env-bulk-ingest-reader")) thread.join(10000);
+            }
+
+            assertThat(reported, empty());
+        } finally {
+            Thread.setDefaultUncaughtExceptionHandler(handler);
+        }
+    }
+
+    @Test(expected = UncheckedIOException.class)
+    public void shouldReportAFailureToReadTheInputAfterTheDocumentsBeforeIt() throws Exception {
+        InputStream failing = new InputStream() {
+            private final InputStream first = new ByteArrayInputStream("{\"a\": []}\n".getBytes(StandardCharsets.UTF_8));
+
+            @Override
+            public int read() throws IOException {
+                int b = first.read();
+                if (b < 0) throw new IOException("connection reset");
+                return b;
+            }
+        };
+
+        try (Stream<BulkIngest.Result> results = BulkIngest.defaults().stream(failing)) {
+            Iterator<BulkIngest.Result> iterator = results.iterator();
+            assertThat(iterator.next().isSuccess(), is(true));
+            iterator.next();
+        }
+    }
+
+}
@@ -0,0 +1,137 @@
+package io.pivotal.labs.cfenv;
+
+import org.junit.Test;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class CloudFoundryApplicationTests {
+
+    private static final String VCAP_APPLICATION = "{" +
+            "\"application_id\": \"fa05c1a9-0fc1-4fbd-bae1-139850dec7a3\", \"application_name\": \"myapp\", " +
+            "\"application_uris\": [\"myapp.example.org\", \"myapp.example.org/api\"], " +
+            "\"limits\": {\"disk\": 1024, \"fds\": 16384, \"mem\": 512}, " +
+            "\"organization_id\": \"c0134bdd-8e93-4bd4-8ab0-eca4b8d5a4a7\", \"organization_name\": \"myorg\", " +
+            "\"space_id\": \"06450c72-4669-4dc6-8096-45f9777db68a\", \"space_name\": \"development\"" +
+            "}";
+
+    @Test
+    public void shouldReadTheApplicationFromVcapApplication() throws Exception {
+        CloudFoundryApplication application = new CloudFoundryApplication(TestEnvironment.with("VCAP_APPLICATION", VCAP_APPLICATION));
+
+        assertThat(application.getName(), equalTo("myapp"));
+        assertThat(application.getId(), equalTo("fa05c1a9-0fc1-4fbd-bae1-139850dec7a3"));
+        assertThat(application.getUris(), contains("myapp.example.org", "myapp.example.org/api"));
+        assertThat(application.getSpaceName(), equalTo("development"));
+        assertThat(application.getOrganizationName(), equalTo("myorg"));
+        assertThat(application.getAttributes().get("limits"), equalTo(new HashMap<String, Object>() {{
+            put("disk", 1024);
+            put("fds", 16384);
+            put("mem", 512);
+        }}));
+    }
+
+    @Test
+    public void shouldReadTheInstanceVariables() throws Exception {
+        Map<String, String> variables = new HashMap<>();
+        variables.put("PORT", "8080");
+        variables.put("CF_INSTANCE_INDEX", "2");
+        variables.put("CF_INSTANCE_GUID", "41653aa4-3a3a-486a-4431-ef258b39f042");
+        variables.put("CF_INSTANCE_ADDR", "10.0.16.5:61035");
+        variables.put("MEMORY_LIMIT", "512m");
+        CloudFoundryApplication application = new CloudFoundryApplication(variables::get);
+
+        assertThat(application.getPort(), equalTo(8080));
+        assertThat(application.getInstanceIndex(), equalTo(2));
+        assertThat(application.getInstanceGuid(), equalTo("41653aa4-3a3a-486a-4431-ef258b39f042"));
+        assertThat(application.getInstanceAddress(), equalTo("10.0.16.5:61035"));
+        assertThat(application.getMemoryLimit(), equalTo(512L << 20));
+    }
+
+    @Test
+    public void shouldParseMemoryLimitsInAnyUnit() throws Exception {
+        assertThat(memoryLimit("2G"), equalTo(2L << 30));
+        assertThat(memoryLimit("1024MB"), equalTo(1L << 30));
+        assertThat(memoryLimit("64k"), equalTo(64L << 10));
+        assertThat(memoryLimit("1t"), equalTo(1L << 40));
+        assertThat(memoryLimit("4096"), equalTo(4096L));
+    }
+
+    @Test
+    public void shouldReadEachVariableAtMostOnce() throws Exception {
+        AtomicInteger reads = new AtomicInteger();
+        CloudFoundryApplication application = new CloudFoundryApplication(name -> {
+            reads.incrementAndGet();
+            return name.equals("MEMORY_LIMIT") ? "1G" : null;
+        });
+
+        Set<NoSuchElementException> failures = new HashSet<>();
+        for (int i = 0; i < 3; i++) {
+            assertThat(application.getMemoryLimit(), equalTo(1L << 30));
+            assertThat(application.getMemoryLimitOrDefault(0), equalTo(1L << 30));
+            try {
+                application.getPort();
+                throw new AssertionError("expected an exception");
+            } catch (NoSuchElementException e) {
+                assertThat(e.getMessage(), containsString("PORT"));
+                failures.add(e);
+            }
+        }
+        assertThat(reads.get(), equalTo(2));
+        assertThat(failures, hasSize(3));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldRejectAMalformedVariable() throws Exception {
+        CloudFoundryApplication application = new CloudFoundryApplication(TestEnvironment.with("MEMORY_LIMIT", "lots"));
+
+        application.getMemoryLimit();
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void shouldRejectAnAttributeOfTheWrongType() throws Exception {
+        CloudFoundryApplication application = new CloudFoundryApplication(TestEnvironment.with("VCAP_APPLICATION", "{\"space_name\": 42}"));
+
+        application.getSpaceName();
+    }
+
+    @Test
+    public void shouldGetTheApplicationFromTheEnvironment() throws Exception {
+        Map<String, String> variables = new HashMap<>();
+        variables.put("VCAP_SERVICES", "{}");
+        variables.put("VCAP_APPLICATION", VCAP_APPLICATION);
+
+        assertThat(new CloudFoundryEnvironment(variables::get).getApplication().getName(), equalTo("myapp"));
+        assertThat(CloudFoundryEnvironment.fromJson(new byte[]{'{', '}'}).getApplication().getMemoryLimitOrDefault(-1), equalTo(-1L));
+    }
+
+    @Test
+    public void shouldGetTheApplicationOfEachCallerFromTheCurrentEnvironment() throws Exception {
+        String vcapServices = "{\"redis\": [{\"name\": \"cache\", \"credentials\": {\"uri\": \"redis://one\"}}]}";
+        Map<String, String> first = new HashMap<>();
+        first.put("VCAP_SERVICES", vcapServices);
+        first.put("PORT", "8080");
+        Map<String, String> second = new HashMap<>(first);
+        second.put("PORT", "9090");
+
+        CloudFoundryEnvironment firstEnvironment = CloudFoundryEnvironment.current(first::get);
+        CloudFoundryEnvironment secondEnvironment = CloudFoundryEnvironment.current(second::get);
+
+        assertThat(firstEnvironment.getApplication().getPort(), equalTo(8080));
+        assertThat(secondEnvironment.getApplication().getPort(), equalTo(9090));
+        assertThat(secondEnvironment.getService("cache"), sameInstance(firstEnvironment.getService("cache")));
+        assertThat(CloudFoundryEnvironment.current(new HashMap<>(second)::get), sameInstance(secondEnvironment));
+    }
+
+    private static long memoryLimit(String value) {
+        return new CloudFoundryApplication(TestEnvironment.with("MEMORY_LIMIT", value)).getMemoryLimit();
+    }
+
+}
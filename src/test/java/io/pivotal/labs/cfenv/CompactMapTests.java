@@ -0,0 +1,78 @@
+package io.pivotal.labs.cfenv;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class CompactMapTests {
+
+    @Test
+    public void shouldLookUpKeysInSmallAndLargeMaps() throws Exception {
+        for (int size : new int[]{0, 1, 8, 9, 100}) {
+            Map<String, Object> expected = new LinkedHashMap<>();
+            CompactMap.Builder<Object> builder = new CompactMap.Builder<>();
+            for (int i = 0; i < size; i++) {
+                expected.put("key-" + i, i);
+                builder.put("key-" + i, i);
+            }
+            CompactMap<Object> map = builder.build();
+
+            assertThat(map, equalTo(expected));
+            assertThat(expected, equalTo(map));
+            assertThat(map.hashCode(), equalTo(expected.hashCode()));
+            assertThat(new ArrayList<>(map.keySet()), equalTo(new ArrayList<>(expected.keySet())));
+            for (int i = 0; i < size; i++) {
+                assertThat(map.get("key-" + i), equalTo((Object) i));
+                assertThat(map.keySet().contains("key-" + i), is(true));
+            }
+            assertThat(map.containsKey("key-" + size), is(false));
+            assertThat(map.get("key-" + size), nullValue());
+        }
+    }
+
+    @Test
+    public void shouldKeepTheFirstPositionAndLastValueOfARepeatedKey() throws Exception {
+        for (int size : new int[]{3, 30}) {
+            CompactMap.Builder<Object> builder = new CompactMap.Builder<>();
+            for (int i = 0; i < size; i++) assertThat(builder.put("key-" + i, i), is(true));
+            assertThat(builder.put("key-0", "again"), is(false));
+            CompactMap<Object> map = builder.build();
+
+            assertThat(map.size(), equalTo(size));
+            assertThat(map.keySet().iterator().next(), equalTo("key-0"));
+            assertThat(map.get("key-0"), equalTo((Object) "again"));
+        }
+    }
+
+    @Test
+    public void shouldDistinguishANullValueFromAMissingKey() throws Exception {
+        CompactMap.Builder<Object> builder = new CompactMap.Builder<>();
+        builder.put("password", null);
+        CompactMap<Object> map = builder.build();
+
+        assertThat(map.containsKey("password"), is(true));
+        assertThat(map.containsKey("username"), is(false));
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void shouldBeImmutable() throws Exception {
+        CompactMap.copyOf(new HashMap<String, Object>()).put("password", "secret");
+    }
+
+    @Test
+    public void shouldPackTagsIntoASet() throws Exception {
+        CompactSet tags = CompactSet.copyOf(Arrays.asList("relational", "sql", "relational"));
+
+        assertThat(tags, containsInAnyOrder("relational", "sql"));
+        assertThat(tags.contains("sql"), is(true));
+        assertThat(tags.contains("nosql"), is(false));
+    }
+
+}
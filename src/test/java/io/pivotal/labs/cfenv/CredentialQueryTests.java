@@ -0,0 +1,81 @@
+package io.pivotal.labs.cfenv;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class CredentialQueryTests {
+
+    private static final String CREDENTIALS = "{" +
+            "\"uri\": \"redis://cluster.example.org\", " +
+            "\"nodes\": [{\"hostname\": \"node-0.example.org\", \"port\": 6379}, {\"hostname\": \"node-1.example.org\", \"port\": 6380}], " +
+            "\"ssl\": {\"ca_cert\": \"-----BEGIN CERTIFICATE-----\", \"sentinel\": {\"hostname\": \"sentinel.example.org\"}}, " +
+            "\"dotted.key\": null" +
+            "}";
+
+    @Test
+    public void shouldFindAValueByKey() throws Exception {
+        assertThat(query("uri"), contains("redis://cluster.example.org"));
+        assertThat(query("ssl.ca_cert"), contains("-----BEGIN CERTIFICATE-----"));
+        assertThat(query("ssl.password"), empty());
+    }
+
+    @Test
+    public void shouldFindValuesByIndexAndWildcard() throws Exception {
+        assertThat(query("nodes[1].hostname"), contains("node-1.example.org"));
+        assertThat(query("nodes[*].port"), contains(6379, 6380));
+        assertThat(query("nodes.*.hostname"), contains("node-0.example.org", "node-1.example.org"));
+        assertThat(query("*.ca_cert"), contains("-----BEGIN CERTIFICATE-----"));
+        assertThat(query("nodes[2]"), empty());
+    }
+
+    @Test
+    public void shouldFindValuesAtAnyDepthInDocumentOrder() throws Exception {
+        assertThat(query("..hostname"), contains("node-0.example.org", "node-1.example.org", "sentinel.example.org"));
+        assertThat(query("ssl..hostname"), contains("sentinel.example.org"));
+    }
+
+    @Test
+    public void shouldFindAQuotedKeyWithANullValue() throws Exception {
+        assertThat(query("['dotted.key']"), contains((Object) null));
+    }
+
+    @Test
+    public void shouldEvaluateLazilyAcrossAnEnvironment() throws Exception {
+        CloudFoundryEnvironment environment = new CloudFoundryEnvironment(TestEnvironment.withVcapServices("{\"redis\": [" +
+                "{\"name\": \"cache-1\", \"credentials\": {\"uri\": \"redis://one\"}}," +
+                "{\"name\": \"cache-2\", \"credentials\": {\"uri\": \"redis://two\"}}" +
+                "]}"));
+
+        assertThat(CredentialQuery.compile("uri").evaluate(environment).collect(Collectors.toList()), contains("redis://one", "redis://two"));
+        assertThat(CredentialQuery.compile("uri").evaluate(environment).findFirst().get(), equalTo("redis://one"));
+    }
+
+    @Test
+    public void shouldCacheCompiledQueries() throws Exception {
+        assertThat(CredentialQuery.compile("nodes[*].hostname"), sameInstance(CredentialQuery.compile("nodes[*].hostname")));
+    }
+
+    @Test
+    public void shouldRejectMalformedQueries() throws Exception {
+        for (String expression : Arrays.asList("", "uri.", "nodes[x]", "nodes[0", "a...b")) {
+            try {
+                CredentialQuery.compile(expression);
+                throw new AssertionError("compiled: " + expression);
+            } catch (IllegalArgumentException e) {
+                assertThat(e.getMessage(), containsString("in query: " + expression));
+            }
+        }
+    }
+
+    private List<Object> query(String expression) throws CloudFoundryEnvironmentException {
+        CloudFoundryEnvironment environment = new CloudFoundryEnvironment(TestEnvironment.withVcapServicesContainingService("myservice", CREDENTIALS));
+        return CredentialQuery.compile(expression).evaluate(environment.getService("myservice")).collect(Collectors.toList());
+    }
+
+}
@@ -0,0 +1,125 @@
+package io.pivotal.labs.cfenv;
+
+import io.pivotal.labs.cfenv.JsonTokenizer.Token;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class JsonReaderTests {
+
+    @Test
+    public void shouldReadTheTokensOfADocument() throws Exception {
+        assertThat(tokens("{\"a\": [1, 2.5, \"x\", true, false, null], \"b\": {}}"), contains(
+                Token.START_OBJECT,
+                Token.FIELD_NAME, Token.START_ARRAY, Token.INTEGER, Token.FLOAT, Token.STRING, Token.TRUE, Token.FALSE, Token.NULL, Token.END_ARRAY,
+                Token.FIELD_NAME, Token.START_OBJECT, Token.END_OBJECT,
+                Token.END_OBJECT));
+    }
+
+    @Test
+    public void shouldDecodeEscapesInStrings() throws Exception {
+        JsonReader reader = new JsonReader("\"tab\\there \\\"quoted\\\" caf\\u00e9 \\/\\\\\"");
+        reader.next();
+
+        assertThat(reader.text(), equalTo("tab\there \"quoted\" caf\u00e9 /\\"));
+    }
+
+    @Test
+    public void shouldReadNumbersAsTheSmallestFittingType() throws Exception {
+        assertThat(number("23"), equalTo((Number) 23));
+        assertThat(number("-2147483648"), equalTo((Number) Integer.MIN_VALUE));
+        assertThat(number("3000000000"), equalTo((Number) 3000000000L));
+        assertThat(number("9223372036854775807"), equalTo((Number) Long.MAX_VALUE));
+        assertThat(number("12345678901234567890"), equalTo((Number) new BigInteger("12345678901234567890")));
+        assertThat(number("3.14"), equalTo((Number) 3.14));
+        assertThat(number("1e3"), equalTo((Number) 1000.0));
+    }
+
+    @Test
+    public void shouldSkipOverNestedStructures() throws Exception {
+        JsonReader reader = new JsonReader("[{\"a\": [[], {\"b\": [1]}]}, 2]");
+        reader.next();
+        reader.next();
+        reader.skipChildren();
+
+        assertThat(reader.current(), equalTo(Token.END_OBJECT));
+        assertThat(reader.next(), equalTo(Token.INTEGER));
+        assertThat(reader.number(), equalTo((Number) 2));
+    }
+
+    @Test
+    public void shouldReportTheOffsetsOfTokens() throws Exception {
+        JsonReader reader = new JsonReader("{\"key\": {\"a\": 1}}");
+        reader.next();
+        reader.next();
+        reader.next();
+
+        assertThat(reader.tokenOffset(), equalTo(8L));
+        reader.skipChildren();
+        assertThat(reader.offset(), equalTo(16L));
+    }
+
+    @Test
+    public void shouldRejectMalformedDocuments() throws Exception {
+        assertMalformed("{\"a\": 1,}");
+        assertMalformed("{\"a\" 1}");
+        assertMalformed("[1 2]");
+        assertMalformed("[01]");
+        assertMalformed("[\"unterminated]");
+        assertMalformed("[tru]");
+        assertMalformed("{'a': 1}");
+        assertMalformed("[\"\\q\"]");
+        assertMalformed("[\"\\u12\"]");
+    }
+
+    @Test(expected = MalformedJsonException.class)
+    public void shouldRejectABadEscapeInAStringWhichIsSkipped() throws Exception {
+        JsonReader reader = new JsonReader("{\"password\": \"a\\qb\"}");
+        reader.next();
+        reader.skipChildren();
+    }
+
+    @Test
+    public void shouldGiveThePositionOfAnErrorWithoutTheDocument() throws Exception {
+        try {
+            tokens("{\n  \"secret\": \"hunter2\",\n  oops\n}");
+        } catch (MalformedJsonException e) {
+            assertThat(e.getMessage(), containsString("line 3, column 3"));
+            assertThat(e.getMessage(), not(containsString("hunter2")));
+            return;
+        }
+        throw new AssertionError("expected an exception");
+    }
+
+    private List<Token> tokens(String json) throws IOException {
+        JsonReader reader = new JsonReader(json);
+        List<Token> tokens = new ArrayList<>();
+        Token token;
+        while ((token = reader.next()) != null) {
+            tokens.add(token);
+        }
+        return tokens;
+    }
+
+    private Number number(String json) throws IOException {
+        JsonReader reader = new JsonReader(json);
+        reader.next();
+        return reader.number();
+    }
+
+    private void assertMalformed(String json) throws IOException {
+        try {
+            tokens(json);
+        } catch (MalformedJsonException e) {
+            return;
+        }
+        throw new AssertionError("expected an exception parsing " + json);
+    }
+
+}
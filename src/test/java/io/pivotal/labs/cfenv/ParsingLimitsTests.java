@@ -0,0 +1,107 @@
+package io.pivotal.labs.cfenv;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class ParsingLimitsTests {
+
+    private static final String JSON = "{\"user-provided\": [" +
+            "{\"name\": \"first\", \"credentials\": {\"password\": \"hunter2\", \"nested\": {\"list\": [1, 2, 3]}}}," +
+            "{\"name\": \"second\", \"credentials\": {}}" +
+            "]}";
+
+    @Test
+    public void shouldParseADocumentWithinTheLimits() throws Exception {
+        ParsingLimits limits = ParsingLimits.none()
+                .maxLength(JSON.length())
+                .maxDepth(6)
+                .maxServices(2)
+                .maxCredentialEntries(6)
+                .maxStringLength(13);
+
+        for (ParsingOptions options : allOptions(limits)) {
+            CloudFoundryEnvironment environment = new CloudFoundryEnvironment(TestEnvironment.withVcapServices(JSON), options);
+
+            assertThat(environment.getService("first").getCredential("nested", "list"), equalTo((Object) Arrays.asList(1, 2, 3)));
+        }
+    }
+
+    @Test
+    public void shouldRejectADocumentWhichIsTooLong() throws Exception {
+        assertRejected(ParsingLimits.none().maxLength(JSON.length() - 1), "limit of " + (JSON.length() - 1));
+    }
+
+    @Test
+    public void shouldRejectADocumentWhichIsNestedTooDeeply() throws Exception {
+        assertRejected(ParsingLimits.none().maxDepth(5), "nested more deeply than the limit of 5");
+    }
+
+    @Test
+    public void shouldRejectADocumentWithTooManyServices() throws Exception {
+        assertRejected(ParsingLimits.none().maxServices(1), "more services than the limit of 1");
+    }
+
+    @Test
+    public void shouldRejectAServiceWithTooManyCredentialEntries() throws Exception {
+        assertRejected(ParsingLimits.none().maxCredentialEntries(5), "more credential entries than the limit of 5");
+    }
+
+    @Test
+    public void shouldRejectADocumentWithAStringWhichIsTooLong() throws Exception {
+        assertRejected(ParsingLimits.none().maxStringLength(12), "string longer than the limit of 12");
+    }
+
+    @Test(expected = CloudFoundryEnvironmentException.class)
+    public void shouldStopReadingAStreamWhichIsTooLong() throws Exception {
+        ParsingOptions options = ParsingOptions.defaults().limits(ParsingLimits.none().maxLength(10));
+        CloudFoundryEnvironment.fromJson(new ByteArrayInputStream(JSON.getBytes(StandardCharsets.UTF_8)), options);
+    }
+
+    @Test
+    public void shouldNotIncludeTheDocumentInErrorMessages() throws Exception {
+        for (JsonBackend backend : JsonBackend.values()) {
+            try {
+                new CloudFoundryEnvironment(TestEnvironment.withVcapServices(JSON.replace("[1, 2, 3]", "[1, 2, oops]")), ParsingOptions.defaults().jsonBackend(backend));
+            } catch (CloudFoundryEnvironmentException e) {
+                assertThat(e.getMessage(), containsString("line 1, column"));
+                assertThat(e.getMessage(), not(containsString("hunter2")));
+                assertThat(e.getCause().getMessage(), not(containsString("hunter2")));
+                continue;
+            }
+            throw new AssertionError("expected an exception with " + backend);
+        }
+    }
+
+    private void assertRejected(ParsingLimits limits, String expectedMessage) {
+        for (ParsingOptions options : allOptions(limits)) {
+            try {
+                new CloudFoundryEnvironment(TestEnvironment.withVcapServices(JSON), options);
+            } catch (CloudFoundryEnvironmentException e) {
+                assertThat(e.getMessage(), containsString(expectedMessage));
+                assertThat(e.getMessage(), not(containsString("hunter2")));
+                continue;
+            }
+            throw new AssertionError("expected an exception with " + options.getJsonBackend() + (options.isLazyCredentials() ? ", lazily" : "") + (options.getPool() != null ? ", in parallel" : ""));
+        }
+    }
+
+    private ParsingOptions[] allOptions(ParsingLimits limits) {
+        ParsingOptions jackson = ParsingOptions.defaults().limits(limits).jsonBackend(JsonBackend.JACKSON);
+        ParsingOptions builtIn = ParsingOptions.defaults().limits(limits).jsonBackend(JsonBackend.BUILT_IN);
+        return new ParsingOptions[]{
+                jackson,
+                builtIn,
+                jackson.lazyCredentials(),
+                builtIn.lazyCredentials(),
+                jackson.parallel(),
+                builtIn.parallel().lazyCredentials()
+        };
+    }
+
+}
@@ -0,0 +1,126 @@
+package io.pivotal.labs.cfenv;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.function.BooleanSupplier;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class ReloadingEnvironmentTests {
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Test
+    public void shouldReloadTheFileWhenItChanges() throws Exception {
+        Path file = write(temporaryFolder.newFile().toPath(), "redis://one");
+
+        try (ReloadingEnvironment holder = ReloadingEnvironment.watch(file, ParsingOptions.defaults(), Duration.ofMillis(20))) {
+            CloudFoundryEnvironment before = holder.get();
+            assertThat(before.getService("cache").getCredential("uri"), equalTo("redis://one"));
+
+            write(file, "redis://two");
+            await(() -> holder.get() != before);
+
+            assertThat(holder.get().getService("cache").getCredential("uri"), equalTo("redis://two"));
+            assertThat(before.getService("cache").getCredential("uri"), equalTo("redis://one"));
+        }
+    }
+
+    @Test
+    public void shouldKeepThePreviousEnvironmentIfTheFileBecomesMalformed() throws Exception {
+        Path file = write(temporaryFolder.newFile().toPath(), "redis://one");
+
+        try (ReloadingEnvironment holder = ReloadingEnvironment.watch(file, ParsingOptions.defaults(), Duration.ofMillis(20))) {
+            CloudFoundryEnvironment before = holder.get();
+
+            Files.write(file, "{\"redis\": [".getBytes(StandardCharsets.UTF_8));
+            await(() -> holder.getReloadFailure() != null);
+
+            assertThat(holder.get(), sameInstance(before));
+            assertThat(holder.getReloadFailure(), instanceOf(CloudFoundryEnvironmentException.class));
+        }
+    }
+
+    @Test
+    public void shouldNotReplaceTheEnvironmentIfTheFileIsRewrittenUnchanged() throws Exception {
+        Path file = write(temporaryFolder.newFile().toPath(), "redis://one");
+
+        try (ReloadingEnvironment holder = ReloadingEnvironment.watch(file, ParsingOptions.defaults(), Duration.ofMillis(20))) {
+            CloudFoundryEnvironment before = holder.get();
+
+            write(file, "redis://one");
+            holder.reload();
+
+            assertThat(holder.get(), sameInstance(before));
+        }
+    }
+
+    @Test
+    public void shouldTellListenersWhichServicesChanged() throws Exception {
+        Path file = write(temporaryFolder.newFile().toPath(), "redis://one");
+        List<EnvironmentDiff> diffs = new CopyOnWriteArrayList<>();
+
+        try (ReloadingEnvironment holder = ReloadingEnvironment.watch(file, ParsingOptions.defaults(), Duration.ofMillis(20))) {
+            holder.addListener(diffs::add);
+
+            write(file, "redis://two");
+            await(() -> !diffs.isEmpty());
+
+            EnvironmentDiff diff = diffs.get(0);
+            assertThat(diff.getAfter(), sameInstance(holder.get()));
+            assertThat(diff.getChanged(), contains(holder.get().getService("cache")));
+            assertThat(diff.getChangedCredentialPaths("cache"), contains(CredentialPath.of("uri")));
+        }
+    }
+
+    @Test
+    public void shouldReportAListenerWhichFails() throws Exception {
+        Path file = write(temporaryFolder.newFile().toPath(), "redis://one");
+        IllegalStateException failure = new IllegalStateException("could not reconnect");
+        List<Throwable> reported = new CopyOnWriteArrayList<>();
+        List<EnvironmentDiff> diffs = new CopyOnWriteArrayList<>();
+        // the reload may happen on the background thread, if it notices the change first, so catch failures on any thread
+        Thread.UncaughtExceptionHandler handler = Thread.getDefaultUncaughtExceptionHandler();
+        Thread.setDefaultUncaughtExceptionHandler((thread, e) -> reported.add(e));
+
+        try (ReloadingEnvironment holder = ReloadingEnvironment.watch(file, ParsingOptions.defaults(), Duration.ofHours(1))) {
+            holder.addListener(diff -> {
+                throw failure;
+            });
+            holder.addListener(diffs::add);
+
+            write(file, "redis://two");
+            holder.reload();
+
+            assertThat(reported, contains((Throwable) failure));
+            assertThat(holder.getListenerFailure(), sameInstance(failure));
+            assertThat(diffs, hasSize(1));
+        } finally {
+            Thread.setDefaultUncaughtExceptionHandler(handler);
+        }
+    }
+
+    private static Path write(Path file, String uri) throws Exception {
+        String json = "{\"redis\": [{\"name\": \"cache\", \"credentials\": {\"uri\": \"" + uri + "\"}}]}";
+        return Files.write(file, json.getBytes(StandardCharsets.UTF_8));
+    }
+
+    private static void await(BooleanSupplier condition) throws InterruptedException {
+        long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+        while (!condition.getAsBoolean()) {
+            if (System.nanoTime() > deadline) throw new AssertionError("timed out");
+            Thread.sleep(10);
+        }
+    }
+
+}
@@ -0,0 +1,66 @@
+package io.pivotal.labs.cfenv;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.hamcrest.MatcherAssert.assertThat;
+import static org.hamcrest.Matchers.*;
+
+public class StringTableTests {
+
+    private static final String JSON = "{\"postgresql\": [" +
+            "{\"name\": \"db-1\", \"label\": \"postgresql\", \"tags\": [\"relational\"], \"credentials\": {\"hostname\": \"db.example.org\"}}," +
+            "{\"name\": \"db-2\", \"label\": \"postgresql\", \"tags\": [\"relational\"], \"credentials\": {\"hostname\": \"db.example.org\"}}" +
+            "]}";
+
+    @Test
+    public void shouldReturnTheFirstOfEqualStrings() throws Exception {
+        StringTable table = new StringTable();
+        String first = new String("postgresql");
+        String second = new String("postgresql");
+
+        assertThat(table.intern(first), sameInstance(first));
+        assertThat(table.intern(second), sameInstance(first));
+        assertThat(table.intern(null), nullValue());
+    }
+
+    @Test
+    public void shouldStayTheSameSizeHoweverManyStringsAreAdded() throws Exception {
+        StringTable table = new StringTable(2);
+        List<String> strings = new ArrayList<>();
+        for (int i = 0; i < 1000; i++) {
+            String string = "string-" + i;
+            strings.add(string);
+            assertThat(table.intern(string), equalTo(string));
+        }
+
+        assertThat(table.intern(new String(strings.get(999))), sameInstance(strings.get(999)));
+    }
+
+    @Test
+    public void shouldDeduplicateStringsWithinAnEnvironment() throws Exception {
+        for (JsonBackend backend : JsonBackend.values()) {
+            CloudFoundryEnvironment environment = new CloudFoundryEnvironment(TestEnvironment.withVcapServices(JSON), ParsingOptions.defaults().jsonBackend(backend));
+            CloudFoundryService first = environment.getService("db-1");
+            CloudFoundryService second = environment.getService("db-2");
+
+            assertThat(second.getLabel(), sameInstance(first.getLabel()));
+            assertThat(second.getTags().iterator().next(), sameInstance(first.getTags().iterator().next()));
+            assertThat(second.getCredential("hostname"), sameInstance(first.getCredential("hostname")));
+            assertThat(second.getCredentials().keySet().iterator().next(), sameInstance(first.getCredentials().keySet().iterator().next()));
+        }
+    }
+
+    @Test
+    public void shouldDeduplicateStringsAcrossEnvironmentsWhichShareATable() throws Exception {
+        ParsingOptions options = ParsingOptions.defaults().stringTable(new StringTable()).lazyCredentials();
+        CloudFoundryEnvironment first = new CloudFoundryEnvironment(TestEnvironment.withVcapServices(JSON), options);
+        CloudFoundryEnvironment second = new CloudFoundryEnvironment(TestEnvironment.withVcapServices(JSON), options);
+
+        assertThat(second.getService("db-1").getLabel(), sameInstance(first.getService("db-1").getLabel()));
+        assertThat(second.getService("db-1").getCredential("hostname"), sameInstance(first.getService("db-2").getCredential("hostname")));
+    }
+
+}